@@ -41,8 +41,16 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
-
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import io.github.minime89.passbeam.keyboard.BinaryTables;
 import io.github.minime89.passbeam.keyboard.Keycodes;
 import io.github.minime89.passbeam.keyboard.Keysyms;
 import io.github.minime89.passbeam.keyboard.Layout;
@@ -55,6 +63,18 @@ public class FileManager {
     private static final String SCANCODES_MAPPING_DIRECTORY = "scancodes";
     private static final String KEYSYMS_MAPPING_DIRECTORY = "keysyms";
     private static final String KEYCODES_MAPPING_DIRECTORY = "keycodes";
+    private static final String COMPILED_DIRECTORY = "compiled";
+    private static final String LAYOUTS_INDEX_FILE = "layouts";
+
+    /**
+     * Cache of parsed keysyms tables shared by all loaded layouts.
+     */
+    private static final TableCache<Keysyms> keysymsCache = new TableCache<>();
+
+    /**
+     * Cache of parsed scancodes tables shared by all loaded layouts.
+     */
+    private static final TableCache<Scancodes> scancodesCache = new TableCache<>();
 
     /**
      *
@@ -80,6 +100,15 @@ public class FileManager {
 
     }
 
+    /**
+     * Evict all cached keysyms and scancodes tables. The tables will be parsed again on their next
+     * use.
+     */
+    public static void clearCache() {
+        keysymsCache.clear();
+        scancodesCache.clear();
+    }
+
     /**
      * Resolve a path relative to the application directory to the absolute path.
      *
@@ -91,6 +120,18 @@ public class FileManager {
         return new File(context.getExternalFilesDir(null), path);
     }
 
+    /**
+     * Resolve a path relative to the application cache directory to the absolute path. The cache
+     * directory holds data derived from the installed files, which can be recreated at any time.
+     *
+     * @param path The path.
+     * @return Returns the absolute filepath.
+     */
+    public File resolveCachePath(String path) {
+        Context context = PassBeamApplication.getInstance().getContext();
+        return new File(context.getCacheDir(), path);
+    }
+
     /**
      * Install the provided asset path into the files folder of the external storage, available to
      * the application. If the path is a folder, it will recursively try to install the files and
@@ -309,7 +350,24 @@ public class FileManager {
             throw new FileManagerException(String.format("couldn't find keycodes file with ID '%s'", keycodesId));
         }
 
-        return loadXmlFile(file, Keycodes.class);
+        File compiledFile = resolveCachePath(COMPILED_DIRECTORY + "/" + KEYCODES_MAPPING_DIRECTORY + "/" + keycodesId);
+        try {
+            Keycodes keycodes = BinaryTables.readKeycodes(compiledFile, file);
+            if (keycodes != null) {
+                return keycodes;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, String.format("couldn't read compiled keycodes file '%s': %s", compiledFile.getPath(), e.getMessage()));
+        }
+
+        Keycodes keycodes = loadXmlFile(file, Keycodes.class);
+        try {
+            BinaryTables.writeKeycodes(compiledFile, file, keycodes);
+        } catch (IOException e) {
+            Log.w(TAG, String.format("couldn't write compiled keycodes file '%s': %s", compiledFile.getPath(), e.getMessage()));
+        }
+
+        return keycodes;
     }
 
     public Keysyms loadKeysyms(String keysymsId) throws FileManagerException {
@@ -321,7 +379,29 @@ public class FileManager {
             throw new FileManagerException(String.format("couldn't find keysyms file with ID '%s'", keysymsId));
         }
 
-        return loadXmlFile(file, Keysyms.class);
+        long lastModified = file.lastModified();
+        Keysyms keysyms = keysymsCache.get(keysymsId, lastModified);
+        if (keysyms == null) {
+            File compiledFile = resolveCachePath(COMPILED_DIRECTORY + "/" + KEYSYMS_MAPPING_DIRECTORY + "/" + keysymsId);
+            try {
+                keysyms = BinaryTables.readKeysyms(compiledFile, file);
+            } catch (IOException e) {
+                Log.w(TAG, String.format("couldn't read compiled keysyms file '%s': %s", compiledFile.getPath(), e.getMessage()));
+            }
+
+            if (keysyms == null) {
+                keysyms = loadXmlFile(file, Keysyms.class);
+                try {
+                    BinaryTables.writeKeysyms(compiledFile, file, keysyms);
+                } catch (IOException e) {
+                    Log.w(TAG, String.format("couldn't write compiled keysyms file '%s': %s", compiledFile.getPath(), e.getMessage()));
+                }
+            }
+
+            keysymsCache.put(keysymsId, lastModified, keysyms);
+        }
+
+        return keysyms;
     }
 
     public Scancodes loadScancodes(String scancodesId) throws FileManagerException {
@@ -333,16 +413,149 @@ public class FileManager {
             throw new FileManagerException(String.format("couldn't find scancodes file with ID '%s'", scancodesId));
         }
 
-        return loadXmlFile(file, Scancodes.class);
+        long lastModified = file.lastModified();
+        Scancodes scancodes = scancodesCache.get(scancodesId, lastModified);
+        if (scancodes == null) {
+            File compiledFile = resolveCachePath(COMPILED_DIRECTORY + "/" + SCANCODES_MAPPING_DIRECTORY + "/" + scancodesId);
+            try {
+                scancodes = BinaryTables.readScancodes(compiledFile, file);
+            } catch (IOException e) {
+                Log.w(TAG, String.format("couldn't read compiled scancodes file '%s': %s", compiledFile.getPath(), e.getMessage()));
+            }
+
+            if (scancodes == null) {
+                scancodes = loadXmlFile(file, Scancodes.class);
+                try {
+                    BinaryTables.writeScancodes(compiledFile, file, scancodes);
+                } catch (IOException e) {
+                    Log.w(TAG, String.format("couldn't write compiled scancodes file '%s': %s", compiledFile.getPath(), e.getMessage()));
+                }
+            }
+
+            scancodesCache.put(scancodesId, lastModified, scancodes);
+        }
+
+        return scancodes;
     }
 
+    /**
+     * Load the layouts of all keycodes files. The layouts are read from the layouts index file in
+     * the cache directory, since it is derived from the installed keycodes files.
+     * Only the keycodes files which changed since the index was written will be read again, after
+     * which the index file gets updated. If the index file doesn't exist, all keycodes files will
+     * be read in parallel.
+     *
+     * @return Returns the layouts.
+     * @throws FileManagerException When the layouts couldn't be loaded.
+     */
     public Collection<Layout> loadLayouts() throws FileManagerException {
         Log.v(TAG, "load layouts");
 
-        Collection<Layout> layouts = new ArrayList<>();
-
         Collection<File> keycodesFiles = getKeycodesFiles();
 
+        File indexFile = resolveCachePath(LAYOUTS_INDEX_FILE);
+        Map<String, LayoutsIndex.Entry> index = null;
+        try {
+            index = LayoutsIndex.read(indexFile);
+        } catch (IOException e) {
+            Log.w(TAG, String.format("couldn't read layouts index file '%s': %s", indexFile.getPath(), e.getMessage()));
+        }
+
+        if (index == null) {
+            index = new HashMap<>();
+        }
+
+        //collect keycodes files which changed since the index was written
+        Set<File> changedFiles = new HashSet<>();
+        for (File keycodesFile : keycodesFiles) {
+            LayoutsIndex.Entry entry = index.get(keycodesFile.getName());
+            if (entry == null || !entry.matches(keycodesFile)) {
+                changedFiles.add(keycodesFile);
+            }
+        }
+
+        Map<String, LayoutsIndex.Entry> changedEntries = loadLayoutsIndexEntries(changedFiles);
+
+        Collection<LayoutsIndex.Entry> entries = new ArrayList<>();
+        for (File keycodesFile : keycodesFiles) {
+            LayoutsIndex.Entry entry = changedEntries.get(keycodesFile.getName());
+            if (entry == null && !changedFiles.contains(keycodesFile)) {
+                entry = index.get(keycodesFile.getName());
+            }
+
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+
+        if (!changedFiles.isEmpty() || entries.size() != index.size()) {
+            try {
+                LayoutsIndex.write(indexFile, entries);
+            } catch (IOException e) {
+                Log.w(TAG, String.format("couldn't write layouts index file '%s': %s", indexFile.getPath(), e.getMessage()));
+            }
+        }
+
+        Collection<Layout> layouts = new ArrayList<>(entries.size());
+        for (LayoutsIndex.Entry entry : entries) {
+            layouts.add(entry.getLayout());
+        }
+
+        return layouts;
+    }
+
+    /**
+     * Read the layouts index entries of the given keycodes files in parallel. Files which couldn't
+     * be read are skipped.
+     *
+     * @param keycodesFiles The keycodes files.
+     * @return Returns the entries by layout ID.
+     * @throws FileManagerException When the keycodes files couldn't be read.
+     */
+    private Map<String, LayoutsIndex.Entry> loadLayoutsIndexEntries(Collection<File> keycodesFiles) throws FileManagerException {
+        Map<String, LayoutsIndex.Entry> entries = new HashMap<>();
+        if (keycodesFiles.isEmpty()) {
+            return entries;
+        }
+
+        int threads = Math.min(keycodesFiles.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Collection<Future<LayoutsIndex.Entry>> futures = new ArrayList<>(keycodesFiles.size());
+            for (final File keycodesFile : keycodesFiles) {
+                futures.add(executor.submit(new Callable<LayoutsIndex.Entry>() {
+                    @Override
+                    public LayoutsIndex.Entry call() throws Exception {
+                        return loadLayoutsIndexEntry(keycodesFile);
+                    }
+                }));
+            }
+
+            for (Future<LayoutsIndex.Entry> future : futures) {
+                LayoutsIndex.Entry entry = future.get();
+                if (entry != null) {
+                    entries.put(entry.getLayout().getId(), entry);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new FileManagerException("loading layouts was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new FileManagerException("couldn't load layouts", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return entries;
+    }
+
+    /**
+     * Read the layout of a keycodes file and create the layouts index entry for it.
+     *
+     * @param keycodesFile The keycodes file.
+     * @return Returns the entry or null if the keycodes file couldn't be read.
+     * @throws FileManagerException When the XML parser couldn't be instantiated.
+     */
+    private LayoutsIndex.Entry loadLayoutsIndexEntry(File keycodesFile) throws FileManagerException {
         XmlPullParser parser;
         try {
             parser = XmlPullParserFactory.newInstance().newPullParser();
@@ -350,59 +563,61 @@ public class FileManager {
             throw new FileManagerException("unable to instantiate XML parser");
         }
 
-        for (File keycodesFile : keycodesFiles) {
-            InputStream is = null;
-            try {
-                is = new BufferedInputStream(new FileInputStream(keycodesFile), 1024);
-                parser.setInput(is, null);
-
-                Map<String, String> elements = new HashMap<>();
-                elements.put("layoutName", "");
-                elements.put("layoutDescription", "");
-                elements.put("variantName", "");
-                elements.put("variantDescription", "");
-
-                int eventType = parser.getEventType();
-                while (eventType != XmlPullParser.END_DOCUMENT) {
-                    if (eventType == XmlPullParser.START_TAG) {
-                        String tag = parser.getName();
-                        for (Map.Entry<String, String> entry : elements.entrySet()) {
-                            if (entry.getKey().equals(tag)) {
-                                String text = parser.nextText();
-                                entry.setValue(text);
-
-                                break;
-                            }
+        long length = keycodesFile.length();
+        long lastModified = keycodesFile.lastModified();
+
+        //only the layout header at the start of the keycodes file is read
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(keycodesFile));
+            parser.setInput(is, null);
+
+            Map<String, String> elements = new HashMap<>();
+            elements.put("layoutName", "");
+            elements.put("layoutDescription", "");
+            elements.put("variantName", "");
+            elements.put("variantDescription", "");
+
+            int eventType = parser.getEventType();
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                if (eventType == XmlPullParser.START_TAG) {
+                    String tag = parser.getName();
+                    for (Map.Entry<String, String> entry : elements.entrySet()) {
+                        if (entry.getKey().equals(tag)) {
+                            String text = parser.nextText();
+                            entry.setValue(text);
+
+                            break;
                         }
-                    } else if (eventType == XmlPullParser.END_TAG && parser.getName().equals("layout")) {
-                        break;
                     }
-                    eventType = parser.next();
+                } else if (eventType == XmlPullParser.END_TAG && parser.getName().equals("layout")) {
+                    break;
                 }
+                eventType = parser.next();
+            }
 
-                Layout layout = new Layout(elements.get("layoutName"), elements.get("layoutDescription"), elements.get("variantName"), elements.get("variantDescription"));
-                if (!layout.getId().equals(keycodesFile.getName())) {
-                    throw new FileManagerException("layout ID doesn't match the filename");
-                }
+            Layout layout = new Layout(elements.get("layoutName"), elements.get("layoutDescription"), elements.get("variantName"), elements.get("variantDescription"));
+            if (!layout.getId().equals(keycodesFile.getName())) {
+                throw new FileManagerException("layout ID doesn't match the filename");
+            }
 
-                layouts.add(layout);
-            } catch (IOException e) {
-                Log.w(TAG, String.format("couldn't decode keycodes file '%s' (IO error): %s", keycodesFile, e.getMessage()));
-            } catch (XmlPullParserException e) {
-                Log.w(TAG, String.format("couldn't decode keycodes file '%s' (XML error): %s", keycodesFile, e.getMessage()));
-            } catch (FileManagerException e) {
-                Log.w(TAG, String.format("couldn't decode keycodes file '%s' (constraint error): %s", keycodesFile, e.getMessage()));
-            } finally {
-                if (is != null) {
-                    try {
-                        is.close();
-                    } catch (IOException e) {
-                        Log.w(TAG, String.format("error closing file: %s", e.getMessage()));
-                    }
+            return new LayoutsIndex.Entry(layout, length, lastModified);
+        } catch (IOException e) {
+            Log.w(TAG, String.format("couldn't decode keycodes file '%s' (IO error): %s", keycodesFile, e.getMessage()));
+        } catch (XmlPullParserException e) {
+            Log.w(TAG, String.format("couldn't decode keycodes file '%s' (XML error): %s", keycodesFile, e.getMessage()));
+        } catch (FileManagerException e) {
+            Log.w(TAG, String.format("couldn't decode keycodes file '%s' (constraint error): %s", keycodesFile, e.getMessage()));
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    Log.w(TAG, String.format("couldn't close keycodes file '%s': %s", keycodesFile, e.getMessage()));
                 }
             }
         }
 
-        return layouts;
+        return null;
     }
 }
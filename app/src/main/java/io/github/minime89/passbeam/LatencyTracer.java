@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Records the latency of writing strings, from the clipboard change to the last keyboard event
+ * written to the device. Every written string gets a trace ID using {@link #begin()}; the stages
+ * the string passes are recorded with monotonic timestamps using {@link #record(int, Stage)}.
+ * <p/>
+ * The events are kept in a preallocated ring buffer, hence recording an event doesn't allocate any
+ * objects. The oldest events are overwritten once the ring buffer is full. The durations between
+ * the stages are only evaluated when a report is requested using {@link #getReport()}.
+ */
+public class LatencyTracer {
+    /**
+     * The number of events kept in the ring buffer.
+     */
+    private static final int CAPACITY = 4096;
+
+    /**
+     * The trace ID of events which aren't recorded.
+     */
+    public static final int NO_TRACE = 0;
+
+    /**
+     * The stages of writing a string.
+     */
+    public enum Stage {
+        /**
+         * The clipboard changed.
+         */
+        CLIP_CHANGED,
+        /**
+         * The conversion of the string into keyboard events started.
+         */
+        CONVERT_START,
+        /**
+         * The conversion of the string into keyboard events ended.
+         */
+        CONVERT_END,
+        /**
+         * The keyboard events were added to the queue of the writer.
+         */
+        QUEUED,
+        /**
+         * The writer took the keyboard events from the queue.
+         */
+        DEQUEUED,
+        /**
+         * The superuser session of the writer is ready for writing.
+         */
+        SESSION_READY,
+        /**
+         * The first keyboard event was written.
+         */
+        FIRST_REPORT,
+        /**
+         * The last keyboard event was written.
+         */
+        LAST_REPORT
+    }
+
+    /**
+     * The spans which are evaluated by the report. Each span is the duration between two stages of
+     * the same trace.
+     */
+    private enum Span {
+        CONVERT("convert", Stage.CONVERT_START, Stage.CONVERT_END),
+        QUEUE_WAIT("queue wait", Stage.QUEUED, Stage.DEQUEUED),
+        SESSION("session", Stage.DEQUEUED, Stage.SESSION_READY),
+        FIRST_REPORT("first report", Stage.SESSION_READY, Stage.FIRST_REPORT),
+        WRITE("write", Stage.FIRST_REPORT, Stage.LAST_REPORT),
+        SUBMIT_TO_LAST("submit to last", Stage.QUEUED, Stage.LAST_REPORT),
+        TOTAL("total", null, Stage.LAST_REPORT);
+
+        private final String name;
+        private final Stage start;
+        private final Stage end;
+
+        Span(String name, Stage start, Stage end) {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static final int[] traces = new int[CAPACITY];
+    private static final byte[] stages = new byte[CAPACITY];
+    private static final long[] timestamps = new long[CAPACITY];
+
+    /**
+     * The total number of recorded events.
+     */
+    private static long count = 0;
+
+    /**
+     * The last assigned trace ID.
+     */
+    private static int lastTrace = 0;
+
+    private LatencyTracer() {
+
+    }
+
+    /**
+     * Start a new trace.
+     *
+     * @return Returns the ID of the trace.
+     */
+    public static synchronized int begin() {
+        if (++lastTrace == NO_TRACE) {
+            lastTrace++;
+        }
+
+        return lastTrace;
+    }
+
+    /**
+     * Record that a trace reached a stage.
+     *
+     * @param trace The ID of the trace. Nothing is recorded for {@link #NO_TRACE}.
+     * @param stage The stage.
+     */
+    public static void record(int trace, Stage stage) {
+        if (trace == NO_TRACE) {
+            return;
+        }
+
+        record(trace, stage, System.nanoTime());
+    }
+
+    /**
+     * Record that a trace reached a stage at the given time.
+     *
+     * @param trace     The ID of the trace.
+     * @param stage     The stage.
+     * @param timestamp The monotonic timestamp in nanoseconds.
+     */
+    static void record(int trace, Stage stage, long timestamp) {
+        synchronized (LatencyTracer.class) {
+            int index = (int) (count % CAPACITY);
+            traces[index] = trace;
+            stages[index] = (byte) stage.ordinal();
+            timestamps[index] = timestamp;
+            count++;
+        }
+    }
+
+    /**
+     * Discard all recorded events.
+     */
+    public static synchronized void clear() {
+        count = 0;
+    }
+
+    /**
+     * Create a text report of the recorded events. The report contains the number of samples, the
+     * median, the 95th percentile and the maximum duration of every span between two stages.
+     *
+     * @return Returns the report.
+     */
+    public static String getReport() {
+        int length;
+        int[] traces;
+        byte[] stages;
+        long[] timestamps;
+        synchronized (LatencyTracer.class) {
+            length = (int) Math.min(count, CAPACITY);
+            int start = (int) ((count - length) % CAPACITY);
+
+            //copy the events in chronological order
+            traces = new int[length];
+            stages = new byte[length];
+            timestamps = new long[length];
+            for (int i = 0; i < length; i++) {
+                int index = (start + i) % CAPACITY;
+                traces[i] = LatencyTracer.traces[index];
+                stages[i] = LatencyTracer.stages[index];
+                timestamps[i] = LatencyTracer.timestamps[index];
+            }
+        }
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.US, "%-16s %6s %10s %10s %10s%n", "span", "count", "p50 ms", "p95 ms", "max ms"));
+        for (Span span : Span.values()) {
+            long[] durations = getDurations(span, traces, stages, timestamps, length);
+            if (durations.length == 0) {
+                report.append(String.format(Locale.US, "%-16s %6d %10s %10s %10s%n", span.name, 0, "-", "-", "-"));
+            } else {
+                Arrays.sort(durations);
+                report.append(String.format(Locale.US, "%-16s %6d %10.2f %10.2f %10.2f%n", span.name, durations.length,
+                        toMillis(percentile(durations, 50)), toMillis(percentile(durations, 95)), toMillis(durations[durations.length - 1])));
+            }
+        }
+
+        return report.toString();
+    }
+
+    /**
+     * Get the durations of a span for all traces which contain both stages of the span.
+     */
+    private static long[] getDurations(Span span, int[] traces, byte[] stages, long[] timestamps, int length) {
+        List<Long> durations = new ArrayList<>();
+
+        for (int i = 0; i < length; i++) {
+            if (stages[i] != span.end.ordinal()) {
+                continue;
+            }
+
+            //find the start stage of the same trace, or the first event of the trace for the total
+            int trace = traces[i];
+            long start = -1;
+            for (int j = i - 1; j >= 0; j--) {
+                if (traces[j] != trace) {
+                    continue;
+                }
+
+                if (span.start == null || stages[j] == span.start.ordinal()) {
+                    start = timestamps[j];
+                    if (span.start != null) {
+                        break;
+                    }
+                }
+            }
+
+            if (start != -1) {
+                durations.add(timestamps[i] - start);
+            }
+        }
+
+        long[] result = new long[durations.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = durations.get(i);
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the percentile of sorted values using the nearest rank method.
+     */
+    private static long percentile(long[] sorted, int percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.github.minime89.passbeam.keyboard.Layout;
+
+/**
+ * Persistent index of the layouts described by the keycodes files. Reading the layout information
+ * requires to open and parse every keycodes file, hence the layouts are stored in a single index
+ * file together with the size and modification time of the keycodes file they were read from.
+ * Only entries whose keycodes file changed need to be read again.
+ */
+public class LayoutsIndex {
+    private static final int MAGIC = 0x50424C49;
+    private static final int VERSION = 2;
+
+    /**
+     * Entry of the index.
+     */
+    public static class Entry {
+        private final Layout layout;
+        private final long length;
+        private final long lastModified;
+
+        public Entry(Layout layout, long length, long lastModified) {
+            this.layout = layout;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Check whether the entry is still valid for the given keycodes file.
+         *
+         * @param file The keycodes file.
+         * @return Returns true if the file didn't change since the entry was created.
+         */
+        public boolean matches(File file) {
+            return file.length() == length && file.lastModified() == lastModified;
+        }
+
+        public Layout getLayout() {
+            return layout;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    private LayoutsIndex() {
+
+    }
+
+    /**
+     * Read the index file.
+     *
+     * @param file The index file.
+     * @return Returns the entries of the index by layout ID or null if the index file doesn't
+     * exist or has an unsupported format.
+     * @throws IOException When the index file couldn't be read.
+     */
+    public static Map<String, Entry> read(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (is.readInt() != MAGIC || is.readInt() != VERSION) {
+                return null;
+            }
+
+            int count = is.readInt();
+            Map<String, Entry> entries = new LinkedHashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                long length = is.readLong();
+                long lastModified = is.readLong();
+                Layout layout = new Layout(is.readUTF(), is.readUTF(), is.readUTF(), is.readUTF());
+
+                entries.put(layout.getId(), new Entry(layout, length, lastModified));
+            }
+
+            return entries;
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Write the index file. The file is written to a unique temporary file first, which replaces
+     * the index file when completely written.
+     *
+     * @param file    The index file.
+     * @param entries The entries of the index.
+     * @throws IOException When the index file couldn't be written.
+     */
+    public static void write(File file, Collection<Entry> entries) throws IOException {
+        File directory = file.getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs()) {
+            throw new IOException(String.format("couldn't create directory '%s'", directory.getPath()));
+        }
+
+        //the layouts can be loaded concurrently, hence every write uses its own temporary file
+        File tmpFile = File.createTempFile(file.getName() + ".", ".tmp", directory);
+        boolean written = false;
+        try {
+            DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                os.writeInt(MAGIC);
+                os.writeInt(VERSION);
+                os.writeInt(entries.size());
+                for (Entry entry : entries) {
+                    Layout layout = entry.getLayout();
+                    os.writeLong(entry.getLength());
+                    os.writeLong(entry.getLastModified());
+                    os.writeUTF(nonNull(layout.getLayoutName()));
+                    os.writeUTF(nonNull(layout.getLayoutDescription()));
+                    os.writeUTF(nonNull(layout.getVariantName()));
+                    os.writeUTF(nonNull(layout.getVariantDescription()));
+                }
+            } finally {
+                os.close();
+            }
+
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException(String.format("couldn't rename '%s' to '%s'", tmpFile.getPath(), file.getPath()));
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    private static String nonNull(String string) {
+        return (string != null) ? string : "";
+    }
+}
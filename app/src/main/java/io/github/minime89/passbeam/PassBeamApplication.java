@@ -48,6 +48,15 @@ public class PassBeamApplication extends Application {
         PassBeamService.start(context);
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        if (level >= TRIM_MEMORY_MODERATE) {
+            FileManager.clearCache();
+        }
+    }
+
     public Context getContext() {
         return context;
     }
@@ -0,0 +1,450 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.github.minime89.passbeam.keyboard.HidSink;
+import io.github.minime89.passbeam.keyboard.HidSource;
+import io.github.minime89.passbeam.keyboard.Keycodes;
+import io.github.minime89.passbeam.keyboard.Pacer;
+import io.github.minime89.passbeam.keyboard.RootHidSink;
+import io.github.minime89.passbeam.keyboard.RootHidSource;
+
+/**
+ * Immutable snapshot of the settings. The snapshot is read from the shared preferences once and
+ * only rebuilt by {@link #reload(Context)} when a preference changes, hence reading the settings
+ * using {@link #get()} doesn't involve any preference access or parsing.
+ * <p/>
+ * Keyboard events can be written to multiple HID keyboard devices. The primary output is
+ * configured by the keyboard layout, character timeout, pacing mode and device settings.
+ * Additional outputs are configured one per line by the outputs setting:
+ * <pre>
+ * &lt;device&gt; [&lt;keyboard layout&gt; [&lt;pacing mode&gt; [&lt;character timeout&gt;]]]
+ * </pre>
+ * Omitted values are taken from the primary output. The host feedback setting applies to all
+ * outputs.
+ */
+public class PassBeamConfig {
+    private static final String TAG = PassBeamConfig.class.getSimpleName();
+
+    /**
+     * The settings of a HID keyboard device the keyboard events are written to. The device file
+     * identifies the output.
+     */
+    public static class Output {
+        private final String device;
+        private final String keyboardLayout;
+        private final int characterTimeout;
+        private final Pacer.Mode pacingMode;
+        private final boolean hostFeedback;
+
+        public Output(String device, String keyboardLayout, int characterTimeout, Pacer.Mode pacingMode, boolean hostFeedback) {
+            this.device = device;
+            this.keyboardLayout = keyboardLayout;
+            this.characterTimeout = characterTimeout;
+            this.pacingMode = pacingMode;
+            this.hostFeedback = hostFeedback;
+        }
+
+        /**
+         * Create a {@link Pacer} for the pacing of the output.
+         *
+         * @return Returns the pacer.
+         */
+        public Pacer createPacer() {
+            return new Pacer(pacingMode, TimeUnit.MILLISECONDS.toNanos(characterTimeout));
+        }
+
+        /**
+         * Create a {@link HidSink} for the keyboard device of the output.
+         *
+         * @return Returns the unopened sink.
+         */
+        public HidSink createSink() {
+            return new RootHidSink(device);
+        }
+
+        /**
+         * Create a {@link HidSource} for the output reports of the keyboard device of the output.
+         *
+         * @return Returns the unopened source.
+         */
+        public HidSource createSource() {
+            return new RootHidSource(device);
+        }
+
+        public String getDevice() {
+            return device;
+        }
+
+        public String getKeyboardLayout() {
+            return keyboardLayout;
+        }
+
+        public int getCharacterTimeout() {
+            return characterTimeout;
+        }
+
+        public Pacer.Mode getPacingMode() {
+            return pacingMode;
+        }
+
+        public boolean isHostFeedback() {
+            return hostFeedback;
+        }
+
+        public JSONObject dump() throws JSONException {
+            JSONObject obj = new JSONObject();
+            obj.put("device", device);
+            obj.put("keyboardLayout", keyboardLayout);
+            obj.put("characterTimeout", characterTimeout);
+            obj.put("pacingMode", pacingMode);
+            obj.put("hostFeedback", hostFeedback);
+
+            return obj;
+        }
+
+        @Override
+        public String toString() {
+            try {
+                return dump().toString();
+            } catch (JSONException e) {
+                return super.toString();
+            }
+        }
+    }
+
+    /**
+     * The current snapshot.
+     */
+    private static volatile PassBeamConfig config;
+
+    private final String keyboardLayout;
+    private final int characterTimeout;
+    private final Pacer.Mode pacingMode;
+    private final boolean rollover;
+    private final String device;
+    private final boolean hostFeedback;
+    private final boolean notification;
+
+    /**
+     * The outputs, starting with the primary output.
+     */
+    private final List<Output> outputs;
+
+    private PassBeamConfig(String keyboardLayout, int characterTimeout, Pacer.Mode pacingMode, boolean rollover, String device, boolean hostFeedback, boolean notification, List<Output> outputs) {
+        this.keyboardLayout = keyboardLayout;
+        this.characterTimeout = characterTimeout;
+        this.pacingMode = pacingMode;
+        this.rollover = rollover;
+        this.device = device;
+        this.hostFeedback = hostFeedback;
+        this.notification = notification;
+        this.outputs = Collections.unmodifiableList(outputs);
+    }
+
+    /**
+     * Get the current snapshot of the settings. The snapshot is read from the shared preferences,
+     * if it wasn't read yet.
+     *
+     * @return Returns the snapshot.
+     */
+    public static PassBeamConfig get() {
+        PassBeamConfig config = PassBeamConfig.config;
+        if (config == null) {
+            config = reload(PassBeamApplication.getInstance().getContext());
+        }
+
+        return config;
+    }
+
+    /**
+     * Read the settings from the shared preferences and replace the current snapshot.
+     *
+     * @param context The {@link Context}.
+     * @return Returns the new snapshot.
+     */
+    public static synchronized PassBeamConfig reload(Context context) {
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+
+        String keyboardLayout = sharedPreferences.getString(context.getString(R.string.settings_keyboard_layout_key), Keycodes.DEFAULT_ID);
+
+        String characterTimeoutDefaultStr = context.getString(R.string.settings_character_timeout_defaultValue);
+        String characterTimeoutStr = sharedPreferences.getString(context.getString(R.string.settings_character_timeout_key), characterTimeoutDefaultStr);
+        int characterTimeout;
+        if (isValidCharacterTimeout(characterTimeoutStr)) {
+            characterTimeout = Integer.parseInt(characterTimeoutStr);
+        } else {
+            Log.w(TAG, String.format("invalid character timeout '%s'", characterTimeoutStr));
+            characterTimeout = Integer.parseInt(characterTimeoutDefaultStr);
+        }
+
+        String pacingModeDefaultStr = context.getString(R.string.settings_pacing_mode_defaultValue);
+        String pacingModeStr = sharedPreferences.getString(context.getString(R.string.settings_pacing_mode_key), pacingModeDefaultStr);
+        Pacer.Mode pacingMode;
+        try {
+            pacingMode = Pacer.Mode.valueOf(pacingModeStr);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, String.format("invalid pacing mode '%s'", pacingModeStr));
+            pacingMode = Pacer.Mode.valueOf(pacingModeDefaultStr);
+        }
+
+        boolean rollover = sharedPreferences.getBoolean(context.getString(R.string.settings_rollover_key), Boolean.valueOf(context.getString(R.string.settings_rollover_defaultValue)));
+        String deviceDefault = context.getString(R.string.settings_device_defaultValue);
+        String device = sharedPreferences.getString(context.getString(R.string.settings_device_key), deviceDefault).trim();
+        if (!isValidDevice(device)) {
+            Log.w(TAG, String.format("invalid keyboard device '%s', use '%s'", device, deviceDefault));
+            device = deviceDefault;
+        }
+
+        boolean hostFeedback = sharedPreferences.getBoolean(context.getString(R.string.settings_host_feedback_key), Boolean.valueOf(context.getString(R.string.settings_host_feedback_defaultValue)));
+        boolean notification = sharedPreferences.getBoolean(context.getString(R.string.settings_notification_key), Boolean.valueOf(context.getString(R.string.settings_notification_defaultValue)));
+
+        Output primary = new Output(device, keyboardLayout, characterTimeout, pacingMode, hostFeedback);
+        String outputsStr = sharedPreferences.getString(context.getString(R.string.settings_outputs_key), context.getString(R.string.settings_outputs_defaultValue));
+        List<Output> outputs = parseOutputs(outputsStr, primary);
+
+        config = new PassBeamConfig(keyboardLayout, characterTimeout, pacingMode, rollover, device, hostFeedback, notification, outputs);
+
+        Log.v(TAG, String.format("loaded settings %s", config));
+
+        return config;
+    }
+
+    /**
+     * Parse the additional outputs. Empty lines and lines starting with <code>#</code> are
+     * ignored, as well as outputs whose device is invalid, see {@link #isValidDevice(String)}, or
+     * already used by a previous output.
+     *
+     * @param outputsStr The additional outputs, one per line.
+     * @param primary    The primary output, which provides the omitted values.
+     * @return Returns the outputs, starting with the primary output.
+     */
+    static List<Output> parseOutputs(String outputsStr, Output primary) {
+        List<Output> outputs = new ArrayList<>();
+        outputs.add(primary);
+
+        for (String line : outputsStr.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            String[] fields = line.split("\\s+");
+            String device = fields[0];
+            if (!isValidDevice(device)) {
+                Log.w(TAG, String.format("invalid output '%s'", device));
+                continue;
+            }
+
+            String keyboardLayout = (fields.length > 1) ? fields[1] : primary.getKeyboardLayout();
+
+            Pacer.Mode pacingMode = primary.getPacingMode();
+            if (fields.length > 2) {
+                try {
+                    pacingMode = Pacer.Mode.valueOf(fields[2]);
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, String.format("invalid pacing mode '%s' of output '%s'", fields[2], device));
+                }
+            }
+
+            int characterTimeout = primary.getCharacterTimeout();
+            if (fields.length > 3) {
+                if (isValidCharacterTimeout(fields[3])) {
+                    characterTimeout = Integer.parseInt(fields[3]);
+                } else {
+                    Log.w(TAG, String.format("invalid character timeout '%s' of output '%s'", fields[3], device));
+                }
+            }
+
+            if (findOutput(outputs, device) != null) {
+                Log.w(TAG, String.format("duplicate output '%s'", device));
+                continue;
+            }
+
+            outputs.add(new Output(device, keyboardLayout, characterTimeout, pacingMode, primary.isHostFeedback()));
+        }
+
+        return outputs;
+    }
+
+    /**
+     * Check whether a keyboard device can be used. The device file must be given by an absolute
+     * path, since its directory is watched for the device file to appear.
+     *
+     * @param device The device file.
+     * @return Returns true if the device file is an absolute path of a file.
+     */
+    public static boolean isValidDevice(String device) {
+        File file = new File(device);
+        return file.isAbsolute() && file.getParent() != null;
+    }
+
+    /**
+     * Check whether a character timeout can be used.
+     *
+     * @param characterTimeoutStr The character timeout in milliseconds.
+     * @return Returns true if the character timeout is a number which isn't negative.
+     */
+    public static boolean isValidCharacterTimeout(String characterTimeoutStr) {
+        try {
+            return Integer.parseInt(characterTimeoutStr) >= 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Check whether all additional outputs have a valid device, see
+     * {@link #isValidDevice(String)}, and a valid character timeout, if given, see
+     * {@link #isValidCharacterTimeout(String)}.
+     *
+     * @param outputsStr The additional outputs, one per line.
+     * @return Returns true if every output is valid.
+     */
+    public static boolean isValidOutputs(String outputsStr) {
+        for (String line : outputsStr.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            String[] fields = line.split("\\s+");
+            if (!isValidDevice(fields[0]) || (fields.length > 3 && !isValidCharacterTimeout(fields[3]))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static Output findOutput(List<Output> outputs, String device) {
+        for (Output output : outputs) {
+            if (output.getDevice().equals(device)) {
+                return output;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Create a {@link Pacer} for the pacing of the primary output.
+     *
+     * @return Returns the pacer.
+     */
+    public Pacer createPacer() {
+        return getPrimaryOutput().createPacer();
+    }
+
+    /**
+     * Create a {@link HidSink} for the keyboard device of the primary output.
+     *
+     * @return Returns the unopened sink.
+     */
+    public HidSink createSink() {
+        return getPrimaryOutput().createSink();
+    }
+
+    /**
+     * Get the output of a keyboard device.
+     *
+     * @param device The device file.
+     * @return Returns the output or null if no output was configured for the device.
+     */
+    public Output getOutput(String device) {
+        return findOutput(outputs, device);
+    }
+
+    public Output getPrimaryOutput() {
+        return outputs.get(0);
+    }
+
+    public List<Output> getOutputs() {
+        return outputs;
+    }
+
+    public String getKeyboardLayout() {
+        return keyboardLayout;
+    }
+
+    public int getCharacterTimeout() {
+        return characterTimeout;
+    }
+
+    public Pacer.Mode getPacingMode() {
+        return pacingMode;
+    }
+
+    public boolean isRollover() {
+        return rollover;
+    }
+
+    public String getDevice() {
+        return device;
+    }
+
+    public boolean isHostFeedback() {
+        return hostFeedback;
+    }
+
+    public boolean isNotification() {
+        return notification;
+    }
+
+    public JSONObject dump() throws JSONException {
+        JSONObject obj = new JSONObject();
+        obj.put("keyboardLayout", keyboardLayout);
+        obj.put("characterTimeout", characterTimeout);
+        obj.put("pacingMode", pacingMode);
+        obj.put("rollover", rollover);
+        obj.put("device", device);
+        obj.put("hostFeedback", hostFeedback);
+        obj.put("notification", notification);
+
+        JSONArray outputsArr = new JSONArray();
+        for (Output output : outputs) {
+            outputsArr.put(output.dump());
+        }
+        obj.put("outputs", outputsArr);
+
+        return obj;
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return dump().toString();
+        } catch (JSONException e) {
+            return super.toString();
+        }
+    }
+}
@@ -26,11 +26,15 @@ import android.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import io.github.minime89.passbeam.hooks.ClipboardListener;
 import io.github.minime89.passbeam.hooks.NotificationListener;
 import io.github.minime89.passbeam.hooks.UsbListener;
 import io.github.minime89.passbeam.keyboard.DeviceWriter;
-import io.github.minime89.passbeam.keyboard.Keycodes;
 
 public class PassBeamService extends Service {
     private static final String TAG = PassBeamService.class.getSimpleName();
@@ -50,6 +54,17 @@ public class PassBeamService extends Service {
      */
     private NotificationListener notificationListener;
 
+    /**
+     * The writers by the device file of their output, starting with the writer of the primary
+     * output. Replaced as a whole when the outputs change, see {@link #updateOutputs()}.
+     */
+    private volatile Map<String, DeviceWriter> deviceWriters = Collections.emptyMap();
+
+    /**
+     * The writer of the primary output.
+     */
+    private volatile DeviceWriter deviceWriter;
+
     /**
      *
      */
@@ -61,8 +76,16 @@ public class PassBeamService extends Service {
     private SharedPreferences.OnSharedPreferenceChangeListener sharedPreferenceChangeListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
         @Override
         public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String s) {
-            if (s.equals(getString(R.string.settings_keyboard_layout_key))) {
-                updateKeyboardLayout();
+            PassBeamConfig.reload(PassBeamService.this);
+
+            if (s.equals(getString(R.string.settings_keyboard_layout_key))
+                    || s.equals(getString(R.string.settings_character_timeout_key))
+                    || s.equals(getString(R.string.settings_pacing_mode_key))
+                    || s.equals(getString(R.string.settings_host_feedback_key))) {
+                updateOutputs();
+            } else if (s.equals(getString(R.string.settings_device_key))
+                    || s.equals(getString(R.string.settings_outputs_key))) {
+                updateDevice();
             } else if (s.equals(getString(R.string.settings_notification_key))) {
                 updateNotification();
             }
@@ -70,16 +93,22 @@ public class PassBeamService extends Service {
     };
 
     /**
-     *
+     * Loads the keyboard layout of a writer in background.
      */
     private class LoadLayoutTask extends AsyncTask<String, Void, Boolean> {
+        private final DeviceWriter deviceWriter;
+
+        private LoadLayoutTask(DeviceWriter deviceWriter) {
+            this.deviceWriter = deviceWriter;
+        }
+
         @Override
         protected Boolean doInBackground(String... params) {
             String keycodesId = params[0];
-            Log.v(TAG, String.format("load keyboard layout '%s'", keycodesId));
+            Log.v(TAG, String.format("load keyboard layout '%s' for '%s'", keycodesId, deviceWriter.getOutput().getDevice()));
 
             try {
-                DeviceWriter.getConverter().load(keycodesId);
+                deviceWriter.getConverter().load(keycodesId);
             } catch (FileManager.FileManagerException e) {
                 Log.e(TAG, String.format("couldn't load keyboard layout '%s': %s", keycodesId, e.getMessage()));
                 return false;
@@ -125,13 +154,55 @@ public class PassBeamService extends Service {
     }
 
     /**
-     *
+     * Create, update and stop the writers according to the configured outputs. Writers of outputs
+     * which are still configured are kept, hence their sessions stay open. The keyboard layout of
+     * a writer is loaded when the writer was created or its keyboard layout changed.
      */
-    private void updateKeyboardLayout() {
-        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
-        String keycodesId = sharedPreferences.getString(getString(R.string.settings_keyboard_layout_key), Keycodes.DEFAULT_ID);
-        LoadLayoutTask loadLayoutTask = new LoadLayoutTask();
-        loadLayoutTask.execute(keycodesId);
+    private synchronized void updateOutputs() {
+        PassBeamConfig config = PassBeamConfig.get();
+        Map<String, DeviceWriter> previous = deviceWriters;
+        Map<String, DeviceWriter> writers = new LinkedHashMap<>();
+
+        for (PassBeamConfig.Output output : config.getOutputs()) {
+            DeviceWriter writer = previous.get(output.getDevice());
+            boolean load;
+            if (writer == null) {
+                writer = new DeviceWriter(output, DeviceWriter.OverflowPolicy.REJECT, DeviceWriter.DEFAULT_QUEUE_CAPACITY);
+                writer.start();
+                load = true;
+            } else {
+                load = !output.getKeyboardLayout().equals(writer.getOutput().getKeyboardLayout());
+                writer.setOutput(output);
+            }
+
+            if (load) {
+                LoadLayoutTask loadLayoutTask = new LoadLayoutTask(writer);
+                loadLayoutTask.execute(output.getKeyboardLayout());
+            }
+
+            writers.put(output.getDevice(), writer);
+        }
+
+        deviceWriters = Collections.unmodifiableMap(writers);
+        deviceWriter = writers.get(config.getPrimaryOutput().getDevice());
+
+        for (Map.Entry<String, DeviceWriter> entry : previous.entrySet()) {
+            if (!writers.containsKey(entry.getKey())) {
+                entry.getValue().stop();
+            }
+        }
+    }
+
+    /**
+     * Update the writers after the keyboard devices changed and open the sessions of the new
+     * keyboard devices.
+     */
+    private void updateDevice() {
+        updateOutputs();
+
+        if (usbListener != null) {
+            usbListener.refresh(this);
+        }
     }
 
     /**
@@ -153,13 +224,13 @@ public class PassBeamService extends Service {
 
         SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
         sharedPreferences.registerOnSharedPreferenceChangeListener(sharedPreferenceChangeListener);
+        PassBeamConfig.reload(this);
 
         Context context = getApplicationContext();
+        updateOutputs();
         usbListener = UsbListener.start(context);
         notificationListener = NotificationListener.start(context);
         clipboardListener = ClipboardListener.start(context);
-
-        updateKeyboardLayout();
     }
 
     @Override
@@ -167,6 +238,10 @@ public class PassBeamService extends Service {
         super.onDestroy();
 
         Log.v(TAG, String.format("stop %s", getClass().getSimpleName()));
+
+        for (DeviceWriter deviceWriter : deviceWriters.values()) {
+            deviceWriter.stop();
+        }
     }
 
     @Override
@@ -185,4 +260,32 @@ public class PassBeamService extends Service {
     public ClipboardListener getClipboardListener() {
         return clipboardListener;
     }
+
+    /**
+     * Get the writer of the primary output.
+     *
+     * @return Returns the writer.
+     */
+    public DeviceWriter getDeviceWriter() {
+        return deviceWriter;
+    }
+
+    /**
+     * Get the writer of an output.
+     *
+     * @param device The device file of the output.
+     * @return Returns the writer or null if no output was configured for the device.
+     */
+    public DeviceWriter getDeviceWriter(String device) {
+        return deviceWriters.get(device);
+    }
+
+    /**
+     * Get the writers of all outputs, starting with the writer of the primary output.
+     *
+     * @return Returns the writers.
+     */
+    public Collection<DeviceWriter> getDeviceWriters() {
+        return deviceWriters.values();
+    }
 }
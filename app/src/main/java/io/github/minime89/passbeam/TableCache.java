@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam;
+
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cache for parsed tables, keyed by table ID. An entry is only valid as long as the modification
+ * time of the file it was parsed from didn't change. Entries are softly referenced, hence the
+ * garbage collector may evict them under memory pressure.
+ *
+ * @param <T> The table type.
+ */
+public class TableCache<T> {
+    /**
+     *
+     */
+    private static class Entry<T> {
+        private final long lastModified;
+        private final SoftReference<T> table;
+
+        private Entry(long lastModified, T table) {
+            this.lastModified = lastModified;
+            this.table = new SoftReference<>(table);
+        }
+    }
+
+    /**
+     * The cached entries.
+     */
+    private final Map<String, Entry<T>> entries = new HashMap<>();
+
+    /**
+     * Get the cached table with the given ID.
+     *
+     * @param id           The table ID.
+     * @param lastModified The current modification time of the table file.
+     * @return Returns the cached table or null if the table isn't cached, was evicted or the file
+     * was modified since the table was cached.
+     */
+    public synchronized T get(String id, long lastModified) {
+        Entry<T> entry = entries.get(id);
+        if (entry == null) {
+            return null;
+        }
+
+        T table = entry.table.get();
+        if (table == null || entry.lastModified != lastModified) {
+            entries.remove(id);
+
+            return null;
+        }
+
+        return table;
+    }
+
+    /**
+     * Add a table to the cache. An already cached table with the same ID will be replaced.
+     *
+     * @param id           The table ID.
+     * @param lastModified The modification time of the table file the table was parsed from.
+     * @param table        The table.
+     */
+    public synchronized void put(String id, long lastModified, T table) {
+        entries.put(id, new Entry<>(lastModified, table));
+    }
+
+    /**
+     * Evict all cached tables.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+}
@@ -65,17 +65,30 @@ public class Utils {
      * @return
      */
     public static String bytesToHex(byte[] bytes, HexFormat format) {
+        return bytesToHex(bytes, 0, bytes.length, format);
+    }
+
+    /**
+     * Convert a range of a byte array to hex string.
+     *
+     * @param bytes  The array of bytes which will be converted into a hex string
+     * @param offset The offset of the first byte to convert.
+     * @param length The number of bytes to convert.
+     * @param format The format of the hex output. See {@link HexFormat} for possible formats.
+     * @return
+     */
+    public static String bytesToHex(byte[] bytes, int offset, int length, HexFormat format) {
         char[] hexChars;
         if (format == HexFormat.CONDENSED) {
-            hexChars = new char[bytes.length * 2];
+            hexChars = new char[length * 2];
         } else if (format == HexFormat.SPACING) {
-            hexChars = new char[bytes.length * 3];
+            hexChars = new char[length * 3];
         } else {
-            hexChars = new char[bytes.length * 4];
+            hexChars = new char[length * 4];
         }
 
-        for (int j = 0; j < bytes.length; j++) {
-            int v = bytes[j] & 0xFF;
+        for (int j = 0; j < length; j++) {
+            int v = bytes[offset + j] & 0xFF;
 
             if (format == HexFormat.CONDENSED) {
                 hexChars[j * 2] = hexArray[v >>> 4];
@@ -94,4 +107,14 @@ public class Utils {
 
         return new String(hexChars);
     }
+
+    /**
+     * Quote a string as single argument for a shell command.
+     *
+     * @param str The string.
+     * @return Returns the quoted string.
+     */
+    public static String shellQuote(String str) {
+        return "'" + str.replace("'", "'\\''") + "'";
+    }
 }
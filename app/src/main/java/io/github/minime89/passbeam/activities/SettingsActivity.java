@@ -29,9 +29,12 @@ import android.util.Log;
 import android.view.MenuInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.Toast;
 
 import java.util.Collection;
 
+import io.github.minime89.passbeam.PassBeamConfig;
+import io.github.minime89.passbeam.PassBeamService;
 import io.github.minime89.passbeam.R;
 import io.github.minime89.passbeam.keyboard.Converter;
 import io.github.minime89.passbeam.keyboard.DeviceWriter;
@@ -61,8 +64,10 @@ public class SettingsActivity extends PreferenceActivity {
         keyboardLayoutTestPreference.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
             @Override
             public boolean onPreferenceClick(Preference preference) {
-                Converter converter = DeviceWriter.getConverter();
-                if (converter != null) {
+                PassBeamService service = PassBeamService.getInstance();
+                DeviceWriter deviceWriter = (service != null) ? service.getDeviceWriter() : null;
+                if (deviceWriter != null) {
+                    Converter converter = deviceWriter.getConverter();
                     Keycodes keycodes = converter.getKeycodes();
                     if (keycodes != null) {
                         StringBuilder strBuilder = new StringBuilder();
@@ -74,7 +79,7 @@ public class SettingsActivity extends PreferenceActivity {
 
                         String str = strBuilder.toString();
                         Log.v(TAG, String.format("write %d printable unicode characters for the selected keyboard layout: %s", str.length(), str));
-                        DeviceWriter.write(str);
+                        deviceWriter.submit(str);
                     }
                 }
 
@@ -83,6 +88,36 @@ public class SettingsActivity extends PreferenceActivity {
         });
     }
 
+    private void setupDevice() {
+        Preference devicePreference = findPreference(getString(R.string.settings_device_key));
+        devicePreference.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+            @Override
+            public boolean onPreferenceChange(Preference preference, Object newValue) {
+                if (!PassBeamConfig.isValidDevice(newValue.toString().trim())) {
+                    Toast.makeText(SettingsActivity.this, getString(R.string.settings_device_invalid), Toast.LENGTH_LONG).show();
+                    return false;
+                }
+
+                return true;
+            }
+        });
+    }
+
+    private void setupOutputs() {
+        Preference outputsPreference = findPreference(getString(R.string.settings_outputs_key));
+        outputsPreference.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+            @Override
+            public boolean onPreferenceChange(Preference preference, Object newValue) {
+                if (!PassBeamConfig.isValidOutputs(newValue.toString())) {
+                    Toast.makeText(SettingsActivity.this, getString(R.string.settings_outputs_invalid), Toast.LENGTH_LONG).show();
+                    return false;
+                }
+
+                return true;
+            }
+        });
+    }
+
     private AppCompatDelegate getAppCompatDelegate() {
         if (appCompatDelegate == null) {
             appCompatDelegate = AppCompatDelegate.create(this, null);
@@ -118,6 +153,8 @@ public class SettingsActivity extends PreferenceActivity {
 
         setupKeyboardLayout();
         setupKeyboardLayoutTest();
+        setupDevice();
+        setupOutputs();
     }
 
     @Override
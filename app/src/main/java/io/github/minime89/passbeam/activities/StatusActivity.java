@@ -37,7 +37,10 @@ import java.io.IOException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import io.github.minime89.passbeam.LatencyTracer;
+import io.github.minime89.passbeam.PassBeamConfig;
 import io.github.minime89.passbeam.R;
+import io.github.minime89.passbeam.Utils;
 
 public class StatusActivity extends AppCompatActivity {
     private static final String TAG = StatusActivity.class.getSimpleName();
@@ -63,7 +66,7 @@ public class StatusActivity extends AppCompatActivity {
                 DataOutputStream os = new DataOutputStream(process.getOutputStream());
                 DataInputStream is = new DataInputStream(process.getInputStream());
 
-                os.writeBytes("test -c /dev/hidg0\n");
+                os.writeBytes(String.format("test -c %s\n", Utils.shellQuote(PassBeamConfig.get().getDevice())));
                 os.writeBytes("echo $?\n");
                 os.flush();
 
@@ -189,6 +192,11 @@ public class StatusActivity extends AppCompatActivity {
         deviceKernelVersionText.setText(kernelVersion);
     }
 
+    private void updateLatencyReport() {
+        TextView latencyReportText = (TextView) findViewById(R.id.latencyReport);
+        latencyReportText.setText(LatencyTracer.getReport());
+    }
+
     private void updateStatus() {
         TaskStatusCheck taskStatusCheck = new TaskStatusCheck();
         taskStatusCheck.execute();
@@ -208,4 +216,11 @@ public class StatusActivity extends AppCompatActivity {
         updateDeviceInfo();
         updateStatus();
     }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+
+        updateLatencyReport();
+    }
 }
@@ -20,12 +20,16 @@ import android.content.ClipData;
 import android.content.ClipDescription;
 import android.content.ClipboardManager;
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
+import android.os.AsyncTask;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+
+import io.github.minime89.passbeam.LatencyTracer;
+import io.github.minime89.passbeam.PassBeamConfig;
 import io.github.minime89.passbeam.PassBeamService;
-import io.github.minime89.passbeam.R;
+import io.github.minime89.passbeam.keyboard.CompiledLayout;
+import io.github.minime89.passbeam.keyboard.Converter;
 import io.github.minime89.passbeam.keyboard.DeviceWriter;
 
 public class ClipboardListener implements ClipboardManager.OnPrimaryClipChangedListener {
@@ -34,6 +38,68 @@ public class ClipboardListener implements ClipboardManager.OnPrimaryClipChangedL
     private final Context context;
     private final ClipboardManager clipboardManager;
 
+    /**
+     * The keyboard events of the current clipboard, encoded in advance. Only a single clipboard is
+     * kept; the keyboard events of the previous clipboard are overwritten when it gets replaced.
+     */
+    private Encoded encoded;
+
+    /**
+     * Counts the clipboard changes. An encoded clipboard is discarded if the clipboard changed
+     * while it was encoded.
+     */
+    private int generation = 0;
+
+    /**
+     * Keyboard events of a clipboard together with the settings they were encoded with.
+     */
+    private static class Encoded {
+        private final ByteBuffer buffer;
+        private final CompiledLayout layout;
+        private final boolean rollover;
+
+        private Encoded(ByteBuffer buffer, CompiledLayout layout, boolean rollover) {
+            this.buffer = buffer;
+            this.layout = layout;
+            this.rollover = rollover;
+        }
+
+        /**
+         * Check whether the keyboard events are still valid for the given settings.
+         */
+        private boolean matches(CompiledLayout layout, boolean rollover) {
+            return this.layout != null && this.layout == layout && this.rollover == rollover;
+        }
+    }
+
+    /**
+     * Encodes the clipboard in background for the primary output.
+     */
+    private class EncodeTask extends AsyncTask<String, Void, Void> {
+        private final int generation;
+        private final int trace;
+
+        private EncodeTask(int generation, int trace) {
+            this.generation = generation;
+            this.trace = trace;
+        }
+
+        @Override
+        protected Void doInBackground(String... params) {
+            DeviceWriter deviceWriter = PassBeamService.getInstance().getDeviceWriter();
+            CompiledLayout layout = deviceWriter.getConverter().getLayout();
+            boolean rollover = PassBeamConfig.get().isRollover();
+
+            ByteBuffer buffer = deviceWriter.encode(params[0], rollover, trace);
+            if (buffer != null) {
+                Log.v(TAG, String.format("encoded clipboard into %d keyboard events", buffer.limit() / Converter.REPORT_SIZE));
+                replaceEncoded(new Encoded(buffer, layout, rollover), generation);
+            }
+
+            return null;
+        }
+    }
+
     /**
      * Constructor.
      *
@@ -61,30 +127,144 @@ public class ClipboardListener implements ClipboardManager.OnPrimaryClipChangedL
     }
 
     /**
-     * Write the clipboard to the keyboard device using the {@link DeviceWriter}.
+     * Write the clipboard to the keyboard devices of all outputs using their {@link DeviceWriter}s.
+     * If the clipboard was already encoded with the current settings of an output, the encoded
+     * keyboard events are written without converting the clipboard again.
      */
     public void write() {
+        write(LatencyTracer.begin());
+    }
+
+    /**
+     * Write the clipboard to the keyboard device as part of an existing trace, see
+     * {@link #write()}.
+     *
+     * @param trace The ID of the trace, see {@link LatencyTracer#begin()}.
+     */
+    private void write(int trace) {
+        boolean rollover = PassBeamConfig.get().isRollover();
+        String data = null;
+
+        boolean first = true;
+        for (DeviceWriter deviceWriter : PassBeamService.getInstance().getDeviceWriters()) {
+            //the given trace belongs to the first output, the other outputs are traced separately
+            int outputTrace = first ? trace : LatencyTracer.begin();
+            first = false;
+
+            ByteBuffer buffer = copyEncoded(deviceWriter.getConverter().getLayout(), rollover);
+            if (buffer != null) {
+                deviceWriter.submit(buffer, outputTrace);
+                continue;
+            }
+
+            if (data == null) {
+                data = readText();
+                if (data == null) {
+                    return;
+                }
+            }
+            deviceWriter.submit(data, outputTrace);
+        }
+    }
+
+    /**
+     * Copy the encoded clipboard, if it was encoded with the given settings. The writer
+     * overwrites a submitted buffer, hence the encoded clipboard is kept for later writes.
+     *
+     * @param layout   The keyboard layout.
+     * @param rollover Whether multiple characters are pressed by a single keyboard event.
+     * @return Returns the copy of the keyboard events or null if the clipboard wasn't encoded with
+     * the given settings.
+     */
+    private synchronized ByteBuffer copyEncoded(CompiledLayout layout, boolean rollover) {
+        if (encoded == null || !encoded.matches(layout, rollover)) {
+            return null;
+        }
+
+        ByteBuffer source = encoded.buffer.duplicate();
+        ByteBuffer buffer = ByteBuffer.allocate(source.remaining());
+        buffer.put(source);
+        buffer.flip();
+
+        return buffer;
+    }
+
+    /**
+     * Read the text of the clipboard.
+     *
+     * @return Returns the text or null if the clipboard doesn't contain text.
+     */
+    private String readText() {
         ClipData clipData = clipboardManager.getPrimaryClip();
-        ClipDescription clipDescription = clipData.getDescription();
+        if (clipData == null) {
+            return null;
+        }
 
+        ClipDescription clipDescription = clipData.getDescription();
         if (clipData.getItemCount() > 0 && clipDescription.hasMimeType(ClipDescription.MIMETYPE_TEXT_PLAIN)) {
             ClipData.Item item = clipData.getItemAt(0);
-            String data = String.valueOf(item.getText());
+            return String.valueOf(item.getText());
+        }
 
-            DeviceWriter.write(data);
+        return null;
+    }
+
+    /**
+     * Replace the encoded clipboard. The keyboard events of the previous clipboard are
+     * overwritten.
+     *
+     * @param replacement The encoded clipboard.
+     * @param generation  The clipboard change the replacement was encoded for. The replacement is
+     *                    discarded if the clipboard changed in the meantime.
+     */
+    private synchronized void replaceEncoded(Encoded replacement, int generation) {
+        if (generation != this.generation) {
+            DeviceWriter.clear(replacement.buffer);
+            return;
         }
+
+        if (encoded != null) {
+            DeviceWriter.clear(encoded.buffer);
+        }
+
+        encoded = replacement;
+    }
+
+    /**
+     * Discard the encoded clipboard, since the clipboard changed. The keyboard events of the
+     * previous clipboard are overwritten.
+     *
+     * @return Returns the generation of the changed clipboard.
+     */
+    private synchronized int discardEncoded() {
+        if (encoded != null) {
+            DeviceWriter.clear(encoded.buffer);
+            encoded = null;
+        }
+
+        return ++generation;
     }
 
     @Override
     public void onPrimaryClipChanged() {
+        int trace = LatencyTracer.begin();
+        LatencyTracer.record(trace, LatencyTracer.Stage.CLIP_CHANGED);
+
         Log.v(TAG, String.format("clipboard changed: %s", clipboardManager.getPrimaryClip()));
 
-        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
-        boolean notification = sharedPreferences.getBoolean(context.getString(R.string.settings_notification_key), Boolean.valueOf(context.getString(R.string.settings_notification_defaultValue)));
+        boolean notification = PassBeamConfig.get().isNotification();
+
+        int generation = discardEncoded();
 
         UsbListener usbListener = PassBeamService.getInstance().getUsbListener();
-        if (usbListener.isConnected() && !notification) {
-            write();
+        if (notification) {
+            //encode in advance, so the notification can write the clipboard without delay
+            String data = readText();
+            if (data != null) {
+                new EncodeTask(generation, trace).execute(data);
+            }
+        } else if (usbListener.isConnected()) {
+            write(trace);
         }
     }
 }
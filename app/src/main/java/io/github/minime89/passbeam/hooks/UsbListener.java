@@ -20,35 +20,108 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.SharedPreferences;
-import android.os.BatteryManager;
-import android.preference.PreferenceManager;
+import android.os.FileObserver;
 import android.util.Log;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import io.github.minime89.passbeam.PassBeamConfig;
 import io.github.minime89.passbeam.PassBeamService;
-import io.github.minime89.passbeam.R;
+import io.github.minime89.passbeam.keyboard.DeviceWriter;
 
+/**
+ * Detects whether a host enumerated the HID keyboard gadget. The device counts as connected if
+ * all of the following conditions hold:
+ * <p/>
+ * 1. The USB state broadcast reports that the USB configuration was set by a host, which isn't the
+ * case for chargers.<br>
+ * 2. The USB device controller reports the state <code>configured</code>, if its state file in
+ * {@link #UDC_DIRECTORY} is readable.<br>
+ * 3. The HID keyboard device file of the primary output exists.
+ * <p/>
+ * The sessions of the writers of all outputs are opened when the device gets connected and closed
+ * when it gets disconnected.
+ * <p/>
+ * The USB state broadcast is only sent on USB state changes. The creation and deletion of the
+ * device file is watched using a {@link FileObserver}, which is replaced when the configured
+ * device file changes, see {@link #refresh(Context)}.
+ */
 public class UsbListener extends BroadcastReceiver {
     private static final String TAG = UsbListener.class.getSimpleName();
+
+    /**
+     * The sticky broadcast sent by the USB device manager on USB state changes.
+     */
+    private static final String ACTION_USB_STATE = "android.hardware.usb.action.USB_STATE";
+
+    /**
+     * Extra of {@link #ACTION_USB_STATE} which is true if the USB configuration was set by a host.
+     */
+    private static final String USB_CONFIGURED = "configured";
+
+    /**
+     * The directory which contains the USB device controllers.
+     */
+    private static final String UDC_DIRECTORY = "/sys/class/udc";
+
+    /**
+     * The state of an USB device controller, once the host selected a configuration.
+     */
+    private static final String UDC_STATE_CONFIGURED = "configured";
+
+    private File device;
+    private FileObserver deviceObserver;
+    private boolean configured;
     private boolean connected;
 
     /**
      * Constructor.
      */
     private UsbListener() {
+        configured = false;
         connected = false;
     }
 
+    /**
+     * Watch the device file of the primary output. A previously watched device file is no longer
+     * watched.
+     *
+     * @param context The {@link Context}.
+     */
+    private synchronized void watch(final Context context) {
+        if (deviceObserver != null) {
+            deviceObserver.stopWatching();
+        }
+
+        final File device = new File(PassBeamConfig.get().getDevice());
+        this.device = device;
+        deviceObserver = new FileObserver(device.getParent(), FileObserver.CREATE | FileObserver.DELETE) {
+            @Override
+            public void onEvent(int event, String path) {
+                if (device.getName().equals(path)) {
+                    Log.v(TAG, String.format("device file '%s' %s", device.getPath(), (event & FileObserver.CREATE) != 0 ? "created" : "deleted"));
+
+                    evaluate(context);
+                }
+            }
+        };
+        deviceObserver.startWatching();
+    }
+
     /**
      * Start a USB listener which listens on broadcasts that indicate whether the device was
-     * connected via USB.
+     * connected to a host via USB.
      *
      * @param context The {@link Context}.
      * @return Returns the created {@link UsbListener} instance.
      */
     public static UsbListener start(Context context) {
         UsbListener usbListener = new UsbListener();
-        context.registerReceiver(usbListener, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        usbListener.watch(context);
+        context.registerReceiver(usbListener, new IntentFilter(ACTION_USB_STATE));
 
         return usbListener;
     }
@@ -59,31 +132,114 @@ public class UsbListener extends BroadcastReceiver {
      * @param context The {@link Context}.
      */
     public void update(Context context) {
-        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
-        boolean notification = sharedPreferences.getBoolean(context.getString(R.string.settings_notification_key), Boolean.valueOf(context.getString(R.string.settings_notification_defaultValue)));
+        boolean notification = PassBeamConfig.get().isNotification();
 
         NotificationListener notificationListener = PassBeamService.getInstance().getNotificationListener();
-        if (connected && notification) {
+        if (isConnected() && notification) {
             notificationListener.show(context);
         } else {
             notificationListener.hide(context);
         }
     }
 
-    @Override
-    public void onReceive(Context context, Intent intent) {
-        boolean connectedOld = connected;
-        int plugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, -1);
-        connected = plugged == BatteryManager.BATTERY_PLUGGED_USB;
+    /**
+     * Watch the device file of the primary output after the outputs changed and evaluate the
+     * connection state again. The sessions of the {@link DeviceWriter}s are opened, if the device
+     * is still connected.
+     *
+     * @param context The {@link Context}.
+     */
+    public void refresh(Context context) {
+        watch(context);
+        evaluate(context);
+
+        if (isConnected()) {
+            for (DeviceWriter deviceWriter : PassBeamService.getInstance().getDeviceWriters()) {
+                deviceWriter.openSession();
+            }
+        }
+    }
 
-        if (connected != connectedOld) {
+    /**
+     * Evaluate the connection state and handle changes.
+     *
+     * @param context The {@link Context}.
+     */
+    private void evaluate(Context context) {
+        boolean changed;
+        synchronized (this) {
+            boolean connectedOld = connected;
+            connected = configured && isUdcConfigured() && device.exists();
+            changed = connected != connectedOld;
+        }
+
+        if (changed) {
+            boolean connected = isConnected();
             Log.v(TAG, String.format("USB connection changed: %b", connected));
 
+            //prepare the keyboard device sessions while connected
+            for (DeviceWriter deviceWriter : PassBeamService.getInstance().getDeviceWriters()) {
+                if (connected) {
+                    deviceWriter.openSession();
+                } else {
+                    deviceWriter.closeSession();
+                }
+            }
+
             update(context);
         }
     }
 
-    public boolean isConnected() {
+    /**
+     * Check whether any USB device controller was configured by a host.
+     *
+     * @return Returns true if a USB device controller is in the configured state or if the states
+     * couldn't be read.
+     */
+    private static boolean isUdcConfigured() {
+        File[] udcs = new File(UDC_DIRECTORY).listFiles();
+        if (udcs == null || udcs.length == 0) {
+            return true;
+        }
+
+        boolean readable = false;
+        for (File udc : udcs) {
+            String state = readLine(new File(udc, "state"));
+            if (state != null) {
+                readable = true;
+                if (state.equals(UDC_STATE_CONFIGURED)) {
+                    return true;
+                }
+            }
+        }
+
+        return !readable;
+    }
+
+    private static String readLine(File file) {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line = reader.readLine();
+                return (line != null) ? line.trim() : null;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        synchronized (this) {
+            configured = intent.getBooleanExtra(USB_CONFIGURED, false);
+        }
+
+        evaluate(context);
+    }
+
+    public synchronized boolean isConnected() {
         return connected;
     }
 }
@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Compact binary format for the keycodes, keysyms and scancodes tables. Parsing the XML tables is
+ * slow, hence every table gets compiled into the binary format the first time it is loaded. The
+ * binary file is memory mapped and read directly on subsequent loads.
+ * <p/>
+ * A binary file consists of a header followed by the payload:
+ * <pre>
+ * int  magic
+ * int  version
+ * int  type
+ * long source length
+ * long source modification time
+ * int  payload hash
+ * </pre>
+ * The source length and modification time identify the XML file the binary file was compiled
+ * from. The payload hash is used to detect corrupted files. The payload holds the table as flat
+ * primitive arrays:
+ * <ul>
+ * <li>keycodes: count, values[count], keysym offsets[count + 1], keysym values[]</li>
+ * <li>keysyms: count, values[count], unicode values[count] (-1 for none), names</li>
+ * <li>scancodes: count, values[count], keycode values[count] (-1 for none), names</li>
+ * </ul>
+ * Names are stored as length prefixed UTF-8 strings after the arrays, a length of -1 represents
+ * null.
+ */
+public class BinaryTables {
+    private static final int MAGIC = 0x50424C54;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int TYPE_KEYCODES = 1;
+    private static final int TYPE_KEYSYMS = 2;
+    private static final int TYPE_SCANCODES = 3;
+    private static final int NONE = -1;
+
+    private BinaryTables() {
+
+    }
+
+    /**
+     * Read compiled keycodes.
+     *
+     * @param file   The binary file.
+     * @param source The XML file the binary file was compiled from.
+     * @return Returns the keycodes or null if the binary file doesn't exist, is outdated or
+     * corrupted.
+     * @throws IOException When the binary file couldn't be read.
+     */
+    public static Keycodes readKeycodes(File file, File source) throws IOException {
+        ByteBuffer buffer = map(file, source, TYPE_KEYCODES);
+        if (buffer == null) {
+            return null;
+        }
+
+        int count = buffer.getInt();
+        int[] values = getInts(buffer, count);
+        int[] offsets = getInts(buffer, count + 1);
+        int[] keysymValues = getInts(buffer, offsets[count]);
+
+        Collection<Keycode> keycodes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            List<Keysym.Ref> keysymRefs = new ArrayList<>(offsets[i + 1] - offsets[i]);
+            for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+                keysymRefs.add(new Keysym.Ref(keysymValues[j]));
+            }
+            keycodes.add(new Keycode(values[i], keysymRefs));
+        }
+
+        return new Keycodes(keycodes);
+    }
+
+    /**
+     * Compile keycodes into a binary file.
+     *
+     * @param file     The binary file.
+     * @param source   The XML file the keycodes were loaded from.
+     * @param keycodes The keycodes.
+     * @throws IOException When the binary file couldn't be written.
+     */
+    public static void writeKeycodes(File file, File source, Keycodes keycodes) throws IOException {
+        Collection<Keycode> entries = keycodes.getKeycodes();
+
+        int keysymCount = 0;
+        for (Keycode keycode : entries) {
+            keysymCount += keycode.getKeysymRefs().size();
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(4 + 4 * entries.size() + 4 * (entries.size() + 1) + 4 * keysymCount);
+        payload.putInt(entries.size());
+        for (Keycode keycode : entries) {
+            payload.putInt(keycode.getValue());
+        }
+        int offset = 0;
+        payload.putInt(offset);
+        for (Keycode keycode : entries) {
+            offset += keycode.getKeysymRefs().size();
+            payload.putInt(offset);
+        }
+        for (Keycode keycode : entries) {
+            for (Keysym.Ref keysymRef : keycode.getKeysymRefs()) {
+                payload.putInt(keysymRef.getValue());
+            }
+        }
+
+        write(file, source, TYPE_KEYCODES, payload);
+    }
+
+    /**
+     * Read compiled keysyms.
+     *
+     * @param file   The binary file.
+     * @param source The XML file the binary file was compiled from.
+     * @return Returns the keysyms or null if the binary file doesn't exist, is outdated or
+     * corrupted.
+     * @throws IOException When the binary file couldn't be read.
+     */
+    public static Keysyms readKeysyms(File file, File source) throws IOException {
+        ByteBuffer buffer = map(file, source, TYPE_KEYSYMS);
+        if (buffer == null) {
+            return null;
+        }
+
+        int count = buffer.getInt();
+        int[] values = getInts(buffer, count);
+        int[] unicodeValues = getInts(buffer, count);
+
+        Collection<Keysym> keysyms = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String name = getString(buffer);
+            String unicodeName = getString(buffer);
+            Unicode unicode = (unicodeValues[i] != NONE) ? new Unicode(unicodeValues[i], unicodeName) : null;
+            keysyms.add(new Keysym(values[i], name, unicode));
+        }
+
+        return new Keysyms(keysyms);
+    }
+
+    /**
+     * Compile keysyms into a binary file.
+     *
+     * @param file    The binary file.
+     * @param source  The XML file the keysyms were loaded from.
+     * @param keysyms The keysyms.
+     * @throws IOException When the binary file couldn't be written.
+     */
+    public static void writeKeysyms(File file, File source, Keysyms keysyms) throws IOException {
+        Collection<Keysym> entries = keysyms.getKeysyms();
+
+        List<byte[]> names = new ArrayList<>(entries.size() * 2);
+        int namesSize = 0;
+        for (Keysym keysym : entries) {
+            Unicode unicode = keysym.getUnicode();
+            byte[] name = encode(keysym.getName());
+            byte[] unicodeName = encode((unicode != null) ? unicode.getName() : null);
+            names.add(name);
+            names.add(unicodeName);
+            namesSize += 8 + ((name != null) ? name.length : 0) + ((unicodeName != null) ? unicodeName.length : 0);
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(4 + 8 * entries.size() + namesSize);
+        payload.putInt(entries.size());
+        for (Keysym keysym : entries) {
+            payload.putInt(keysym.getValue());
+        }
+        for (Keysym keysym : entries) {
+            Unicode unicode = keysym.getUnicode();
+            payload.putInt((unicode != null) ? unicode.getValue() : NONE);
+        }
+        for (byte[] name : names) {
+            putString(payload, name);
+        }
+
+        write(file, source, TYPE_KEYSYMS, payload);
+    }
+
+    /**
+     * Read compiled scancodes.
+     *
+     * @param file   The binary file.
+     * @param source The XML file the binary file was compiled from.
+     * @return Returns the scancodes or null if the binary file doesn't exist, is outdated or
+     * corrupted.
+     * @throws IOException When the binary file couldn't be read.
+     */
+    public static Scancodes readScancodes(File file, File source) throws IOException {
+        ByteBuffer buffer = map(file, source, TYPE_SCANCODES);
+        if (buffer == null) {
+            return null;
+        }
+
+        int count = buffer.getInt();
+        int[] values = getInts(buffer, count);
+        int[] keycodeValues = getInts(buffer, count);
+
+        Collection<Scancode> scancodes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String name = getString(buffer);
+            Keycode.Ref keycodeRef = (keycodeValues[i] != NONE) ? new Keycode.Ref(keycodeValues[i]) : null;
+            scancodes.add(new Scancode(values[i], name, keycodeRef));
+        }
+
+        return new Scancodes(scancodes);
+    }
+
+    /**
+     * Compile scancodes into a binary file.
+     *
+     * @param file      The binary file.
+     * @param source    The XML file the scancodes were loaded from.
+     * @param scancodes The scancodes.
+     * @throws IOException When the binary file couldn't be written.
+     */
+    public static void writeScancodes(File file, File source, Scancodes scancodes) throws IOException {
+        Collection<Scancode> entries = scancodes.getScancodes();
+
+        List<byte[]> names = new ArrayList<>(entries.size());
+        int namesSize = 0;
+        for (Scancode scancode : entries) {
+            byte[] name = encode(scancode.getName());
+            names.add(name);
+            namesSize += 4 + ((name != null) ? name.length : 0);
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(4 + 8 * entries.size() + namesSize);
+        payload.putInt(entries.size());
+        for (Scancode scancode : entries) {
+            payload.putInt(scancode.getValue());
+        }
+        for (Scancode scancode : entries) {
+            Keycode.Ref keycodeRef = scancode.getKeycodeRef();
+            payload.putInt((keycodeRef != null) ? keycodeRef.getValue() : NONE);
+        }
+        for (byte[] name : names) {
+            putString(payload, name);
+        }
+
+        write(file, source, TYPE_SCANCODES, payload);
+    }
+
+    /**
+     * Map a binary file and verify its header.
+     *
+     * @param file   The binary file.
+     * @param source The XML file the binary file was compiled from.
+     * @param type   The expected table type.
+     * @return Returns the payload of the binary file or null if the binary file doesn't exist, is
+     * outdated or corrupted.
+     * @throws IOException When the binary file couldn't be read.
+     */
+    private static ByteBuffer map(File file, File source, int type) throws IOException {
+        if (!file.exists() || file.length() < HEADER_SIZE) {
+            return null;
+        }
+
+        MappedByteBuffer buffer;
+        FileInputStream is = new FileInputStream(file);
+        try {
+            FileChannel channel = is.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            is.close();
+        }
+
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getInt() != type) {
+            return null;
+        }
+
+        if (buffer.getLong() != source.length() || buffer.getLong() != source.lastModified()) {
+            return null;
+        }
+
+        int hash = buffer.getInt();
+        ByteBuffer payload = buffer.slice();
+        if (hash(payload) != hash) {
+            return null;
+        }
+
+        return payload;
+    }
+
+    /**
+     * Write a binary file. The file is written to a unique temporary file in the same directory
+     * first, which replaces the binary file when completely written. The temporary file is deleted
+     * if the write failed.
+     *
+     * @param file    The binary file.
+     * @param source  The XML file the table was loaded from.
+     * @param type    The table type.
+     * @param payload The payload.
+     * @throws IOException When the binary file couldn't be written.
+     */
+    private static void write(File file, File source, int type, ByteBuffer payload) throws IOException {
+        payload.flip();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(type);
+        header.putLong(source.length());
+        header.putLong(source.lastModified());
+        header.putInt(hash(payload));
+        header.flip();
+
+        File directory = file.getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs()) {
+            throw new IOException(String.format("couldn't create directory '%s'", directory.getPath()));
+        }
+
+        //the tables can be compiled concurrently, hence every write uses its own temporary file
+        File tmpFile = File.createTempFile(file.getName() + ".", ".tmp", directory);
+        boolean written = false;
+        try {
+            FileOutputStream os = new FileOutputStream(tmpFile);
+            try {
+                FileChannel channel = os.getChannel();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                while (payload.hasRemaining()) {
+                    channel.write(payload);
+                }
+            } finally {
+                os.close();
+            }
+
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException(String.format("couldn't rename '%s' to '%s'", tmpFile.getPath(), file.getPath()));
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Calculate the FNV-1a hash of the remaining bytes of the buffer, without changing the position
+     * of the buffer.
+     *
+     * @param buffer The buffer.
+     * @return Returns the hash.
+     */
+    private static int hash(ByteBuffer buffer) {
+        int hash = 0x811C9DC5;
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            hash ^= buffer.get(i) & 0xFF;
+            hash *= 0x01000193;
+        }
+
+        return hash;
+    }
+
+    private static int[] getInts(ByteBuffer buffer, int count) {
+        int[] values = new int[count];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + 4 * count);
+
+        return values;
+    }
+
+    private static String getString(ByteBuffer buffer) throws UnsupportedEncodingException {
+        int length = buffer.getInt();
+        if (length == NONE) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(NONE);
+        } else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private static byte[] encode(String string) throws UnsupportedEncodingException {
+        return (string != null) ? string.getBytes("UTF-8") : null;
+    }
+}
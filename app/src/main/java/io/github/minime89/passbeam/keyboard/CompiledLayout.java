@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+/**
+ * Immutable snapshot of a fully built keyboard layout. The snapshot contains the keycode, keysym
+ * and scancode tables and the {@link Keymap} and {@link Decoder} compiled from them. A snapshot
+ * is built completely before it gets published by the {@link Converter}, hence it can be shared
+ * between threads without any locking.
+ */
+public class CompiledLayout {
+    /**
+     * The ID of the keycodes the layout was built from.
+     */
+    private final String keycodesId;
+
+    /**
+     * The keycodes of the layout.
+     */
+    private final Keycodes keycodes;
+
+    /**
+     * The keysyms of the layout.
+     */
+    private final Keysyms keysyms;
+
+    /**
+     * The scancodes of the layout.
+     */
+    private final Scancodes scancodes;
+
+    /**
+     * The lookup table compiled from {@link #keycodes}.
+     */
+    private final Keymap keymap;
+
+    /**
+     * The inverse lookup table compiled from {@link #keycodes}.
+     */
+    private final Decoder decoder;
+
+    /**
+     * Constructor. Builds the given tables and compiles the {@link Keymap} and {@link Decoder}.
+     *
+     * @param keycodesId The ID of the keycodes.
+     * @param keycodes   The keycodes.
+     * @param keysyms    The keysyms.
+     * @param scancodes  The scancodes.
+     */
+    private CompiledLayout(String keycodesId, Keycodes keycodes, Keysyms keysyms, Scancodes scancodes) {
+        this.keycodesId = keycodesId;
+        this.keycodes = keycodes;
+        this.keysyms = keysyms;
+        this.scancodes = scancodes;
+
+        scancodes.build(this);
+        keysyms.build(this);
+        keycodes.build(this);
+
+        this.keymap = Keymap.build(keycodes);
+        this.decoder = Decoder.build(keycodes);
+    }
+
+    /**
+     * Build a compiled layout from loaded tables. The keycodes and scancodes will be resolved
+     * against each other and must not be used by any other compiled layout. The keysyms may be
+     * shared between compiled layouts, since building them doesn't depend on the layout.
+     *
+     * @param keycodesId The ID of the keycodes.
+     * @param keycodes   The keycodes.
+     * @param keysyms    The keysyms.
+     * @param scancodes  The scancodes.
+     * @return Returns the compiled layout.
+     */
+    public static CompiledLayout build(String keycodesId, Keycodes keycodes, Keysyms keysyms, Scancodes scancodes) {
+        return new CompiledLayout(keycodesId, keycodes, keysyms, scancodes);
+    }
+
+    public String getKeycodesId() {
+        return keycodesId;
+    }
+
+    public Keycodes getKeycodes() {
+        return keycodes;
+    }
+
+    public Keysyms getKeysyms() {
+        return keysyms;
+    }
+
+    public Scancodes getScancodes() {
+        return scancodes;
+    }
+
+    public Keymap getKeymap() {
+        return keymap;
+    }
+
+    public Decoder getDecoder() {
+        return decoder;
+    }
+}
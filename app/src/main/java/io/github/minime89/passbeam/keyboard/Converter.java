@@ -18,9 +18,10 @@ package io.github.minime89.passbeam.keyboard;
 
 import android.util.Log;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicReference;
 
 import io.github.minime89.passbeam.FileManager;
 import io.github.minime89.passbeam.Utils;
@@ -29,26 +30,33 @@ import io.github.minime89.passbeam.Utils;
  * The Converter is used for converting characters or strings into keyboard events, when written
  * to the appropriate device, produce that character or string.
  * <p/>
- * In order to encode characters or strings using {@link Converter#convert(char)} or {@link Converter#convert(String)},
+ * In order to encode characters or strings using {@link Converter#convert(char)}, {@link Converter#convert(String)}
+ * or {@link Converter#convert(CharSequence, int, ByteBuffer)},
  * the keycode, keysym and scancode tables need to be loaded using {@link Converter#load(String)} or {@link Converter#load(String, String, String)}.
+ * <p/>
+ * A loaded layout is kept as immutable {@link CompiledLayout}. Conversions don't lock and can run
+ * concurrently to loading a different layout, which replaces the active layout atomically once it
+ * was built.
  */
 public class Converter {
     private static final String TAG = Converter.class.getSimpleName();
 
     /**
-     * The keycodes used in the encoding process.
+     * The size of a single encoded keyboard event in bytes.
      */
-    private Keycodes keycodes;
+    public static final int REPORT_SIZE = 16;
 
     /**
-     * The keysyms used in the encoding process.
+     * The number of key slots of a keyboard event.
      */
-    private Keysyms keysyms;
+    public static final int ROLLOVER_KEYS = 6;
 
     /**
-     * The scancodes used in the encoding process.
+     * The compiled layout used in the encoding process. A new layout is only published after it
+     * was built completely, so conversions never observe a partially loaded layout and don't need
+     * to lock. If loading a new layout fails, the previous layout stays active.
      */
-    private Scancodes scancodes;
+    private final AtomicReference<CompiledLayout> layout = new AtomicReference<>();
 
     /**
      * Exception for {@link Converter}. Thrown in case of a failed character or string conversion in
@@ -76,20 +84,26 @@ public class Converter {
      * events, when written to the appropriate device, produce that string. Read <a href="https://github.com/pelya/android-keyboard-gadget#how-it-works">android-keyboard-gadget</a>
      * or the USB HID specification for more details on the encoding.
      *
+     * The symbols used for the characters are chosen for the whole string, see
+     * {@link #plan(CharSequence)}.
+     *
      * @param string The string to encode.
-     * @return Returns a collection of encoded keyboard events of the input string. Each byte
-     * sequence in the collection represents the keyboard event for the character at that position
-     * in the input string.
+     * @return Returns a collection of encoded keyboard events of the input string. The keyboard
+     * events press and release the keys of the characters as described in
+     * {@link #convert(int[], int, ByteBuffer, boolean)}.
      * @throws ConverterException When parts of the input string couldn't be encoded.
      */
     public Collection<byte[]> convert(String string) throws ConverterException {
         Log.v(TAG, String.format("convert string '%s'", string));
 
-        Collection<byte[]> collection = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(2 * string.length() * REPORT_SIZE);
+        convert(plan(string), 0, buffer, false);
+        buffer.flip();
 
-        char[] characters = string.toCharArray();
-        for (char character : characters) {
-            byte[] bytes = convert(character);
+        Collection<byte[]> collection = new ArrayList<>(buffer.limit() / REPORT_SIZE);
+        while (buffer.hasRemaining()) {
+            byte[] bytes = new byte[REPORT_SIZE];
+            buffer.get(bytes);
             collection.add(bytes);
         }
 
@@ -97,53 +111,320 @@ public class Converter {
     }
 
     /**
-     * Encode a character into a byte sequence which represent a keyboard event, when  written to
-     * the appropriate device, produce that character. Read <a href="https://github.com/pelya/android-keyboard-gadget#how-it-works">android-keyboard-gadget</a>
-     * or the USB HID specification for more details on the encoding.
+     * Encode a string into a series of keyboard events and write them into the given buffer. See
+     * {@link #convert(CharSequence, int, ByteBuffer)}.
      *
-     * @param character The character to encode.
-     * @return Returns an encoded keyboard event of the input character.
+     * @param string The string to encode.
+     * @param buffer The buffer which receives the encoded keyboard events.
+     * @return Returns the number of encoded characters.
      * @throws ConverterException When parts of the input string couldn't be encoded.
      */
-    public synchronized byte[] convert(char character) throws ConverterException {
-        Log.v(TAG, String.format("convert character '%c (\\u%04x)'", character, (int) character));
+    public int convert(CharSequence string, ByteBuffer buffer) throws ConverterException {
+        return convert(string, 0, buffer);
+    }
 
-        if (keycodes == null) {
-            throw new ConverterException("no keycodes loaded");
+    /**
+     * Encode a string, starting at the given offset, into a series of keyboard events and write
+     * them into the given buffer. Each keyboard event is {@link #REPORT_SIZE} bytes long and will
+     * be written at the current position of the buffer.
+     * <p/>
+     * Every character is produced by its preferred symbol, see {@link Keymap#get(char)}, hence the
+     * string doesn't need to be planned and large strings can be encoded in chunks without
+     * allocating any objects, as described in {@link #convert(int[], int, ByteBuffer, boolean)}:
+     * <pre>
+     * int offset = 0;
+     * while (offset &lt; string.length()) {
+     *     buffer.clear();
+     *     offset += converter.convert(string, offset, buffer);
+     *     buffer.flip();
+     *     //write buffer
+     * }
+     * </pre>
+     * Strings which should be typed with as few keyboard events as possible are planned once
+     * using {@link #plan(CharSequence)} and encoded using
+     * {@link #convert(int[], int, ByteBuffer, boolean)} instead.
+     *
+     * @param string The string to encode.
+     * @param offset The offset of the first character to encode.
+     * @param buffer The buffer which receives the encoded keyboard events. The buffer must be able
+     *               to hold at least two keyboard events.
+     * @return Returns the number of encoded characters.
+     * @throws ConverterException When parts of the input string couldn't be encoded. Nothing is
+     *                            written to the buffer in this case.
+     */
+    public int convert(CharSequence string, int offset, ByteBuffer buffer) throws ConverterException {
+        return convert(string, offset, buffer, false);
+    }
+
+    /**
+     * Encode a string, starting at the given offset, into a series of keyboard events and write
+     * them into the given buffer. See {@link #convert(CharSequence, int, ByteBuffer)} and
+     * {@link #convert(int[], int, ByteBuffer, boolean)}.
+     *
+     * @param string   The string to encode.
+     * @param offset   The offset of the first character to encode.
+     * @param buffer   The buffer which receives the encoded keyboard events. The buffer must be
+     *                 able to hold at least two keyboard events.
+     * @param rollover Whether multiple characters should be pressed by a single keyboard event.
+     * @return Returns the number of encoded characters.
+     * @throws ConverterException When parts of the input string couldn't be encoded. Nothing is
+     *                            written to the buffer in this case.
+     */
+    public int convert(CharSequence string, int offset, ByteBuffer buffer, boolean rollover) throws ConverterException {
+        Keymap keymap = getLoadedKeymap();
+
+        int position = buffer.position();
+        int count = encode(keymap, string, null, string.length(), offset, buffer, rollover);
+        if (count < 0) {
+            //discard the keyboard events of the preceding characters
+            buffer.position(position);
+
+            throw new ConverterException(String.format("couldn't find symbols for character '%c'", string.charAt(~count)));
         }
 
-        Collection<Symbol> founds = keycodes.find(character);
-        if (founds.size() == 0) {
-            throw new ConverterException(String.format("couldn't find symbols for character '%c'", character));
+        return count;
+    }
+
+    /**
+     * Choose the symbols used for producing a string. The choice considers the whole string, so
+     * that the number of keyboard events and modifier changes needed for typing the string is
+     * minimal. See {@link Planner}.
+     *
+     * @param string The string to plan.
+     * @return Returns the keymap entry chosen for every character of the string.
+     * @throws ConverterException When parts of the input string can't be produced.
+     */
+    public int[] plan(CharSequence string) throws ConverterException {
+        Keymap keymap = getLoadedKeymap();
+
+        int[] plan = new int[string.length()];
+        int index = Planner.plan(keymap, string, plan);
+        if (index != -1) {
+            throw new ConverterException(String.format("couldn't find symbols for character '%c'", string.charAt(index)));
         }
 
-        Log.v(TAG, String.format("found %d symbols", founds.size()));
+        return plan;
+    }
+
+    /**
+     * Encode a planned string, starting at the given offset, into a series of keyboard events and
+     * write them into the given buffer. Each keyboard event is {@link #REPORT_SIZE} bytes long and
+     * will be written at the current position of the buffer.
+     * <p/>
+     * Every character is pressed and released again. The release is merged with the press of the
+     * next character if both use the same modifiers and different keys, so the host sees the next
+     * key pressed and the previous key released by the same keyboard event. Otherwise an empty
+     * keyboard event releases all keys before the next character is pressed. The last character
+     * is always followed by an empty keyboard event, hence no keys remain pressed when this method
+     * returns. A string of n characters is encoded into at least n + 1 and at most 2n keyboard
+     * events.
+     * <p/>
+     * In rollover mode up to {@link #ROLLOVER_KEYS} consecutive characters are pressed by a single
+     * keyboard event, using all key slots of the keyboard event. The characters are placed into
+     * the key slots in their order in the string, since hosts report newly pressed keys in the
+     * order of the key slots. A group of characters must use the same modifiers and different
+     * keys; any character which breaks these conditions starts a new group. Consecutive groups
+     * are merged like single characters in the normal mode, if they use the same modifiers and
+     * don't share any key. Strings with long runs of characters without modifier changes or
+     * repeated keys therefore need considerably less keyboard events.
+     * <p/>
+     * Characters will be encoded until either the end of the plan is reached or the remaining
+     * space of the buffer can't hold the keyboard events of another character. This allows to
+     * encode large strings in chunks by reusing the same buffer:
+     * <pre>
+     * int[] plan = converter.plan(string);
+     * int offset = 0;
+     * while (offset &lt; plan.length) {
+     *     buffer.clear();
+     *     offset += converter.convert(plan, offset, buffer, rollover);
+     *     buffer.flip();
+     *     //write buffer
+     * }
+     * </pre>
+     * The number of written bytes is reflected by the position of the buffer. No objects will be
+     * allocated during the conversion.
+     *
+     * @param plan     The planned string, see {@link #plan(CharSequence)}.
+     * @param offset   The offset of the first character to encode.
+     * @param buffer   The buffer which receives the encoded keyboard events. The buffer must be
+     *                 able to hold at least two keyboard events.
+     * @param rollover Whether multiple characters should be pressed by a single keyboard event.
+     * @return Returns the number of encoded characters.
+     */
+    public int convert(int[] plan, int offset, ByteBuffer buffer, boolean rollover) {
+        return encode(null, null, plan, plan.length, offset, buffer, rollover);
+    }
+
+    /**
+     * Encode the characters of either a planned string or a string, whose characters are looked
+     * up in the keymap, see {@link #convert(int[], int, ByteBuffer, boolean)}.
+     *
+     * @param keymap   The keymap used to look up the characters of the string or null.
+     * @param string   The string or null if a plan is given.
+     * @param plan     The plan or null if a string is given.
+     * @param length   The length of the string or plan.
+     * @param offset   The offset of the first character to encode.
+     * @param buffer   The buffer which receives the encoded keyboard events.
+     * @param rollover Whether multiple characters should be pressed by a single keyboard event.
+     * @return Returns the number of encoded characters or the bitwise complement of the index of
+     * the first character which can't be produced.
+     */
+    private static int encode(Keymap keymap, CharSequence string, int[] plan, int length, int offset, ByteBuffer buffer, boolean rollover) {
+        if (offset < length && buffer.remaining() < 2 * REPORT_SIZE) {
+            throw new IllegalArgumentException("buffer can't hold the keyboard events of a single character");
+        }
+
+        int maxKeys = rollover ? ROLLOVER_KEYS : 1;
+
+        //the pressed group of characters [pressedStart, pressedEnd)
+        int pressedStart = offset;
+        int pressedEnd = offset;
+        int pressedModifiers = 0;
+
+        int i = offset;
+        while (i < length) {
+            int entry = entry(keymap, string, plan, i);
+            if (entry == Keymap.NONE) {
+                return ~i;
+            }
+            int modifiers = Keymap.getModifiers(entry);
+
+            //collect the group of characters [i, end) which can be pressed at once
+            int end = i + 1;
+            while (end < length && end - i < maxKeys) {
+                int next = entry(keymap, string, plan, end);
+                if (next == Keymap.NONE || Keymap.getModifiers(next) != modifiers || indexOfScancode(keymap, string, plan, i, end, Keymap.getScancode(next)) != -1) {
+                    break;
+                }
+                end++;
+            }
+
+            //reserve space for releasing all keys after the last group
+            boolean release = pressedEnd > pressedStart && (pressedModifiers != modifiers || shareScancode(keymap, string, plan, pressedStart, pressedEnd, i, end));
+            int reports = (release ? 2 : 1) + 1;
+            if (buffer.remaining() < reports * REPORT_SIZE) {
+                break;
+            }
+
+            if (release) {
+                putReport(buffer, 0, keymap, string, plan, 0, 0);
+            }
+            putReport(buffer, modifiers, keymap, string, plan, i, end);
+
+            pressedStart = i;
+            pressedEnd = end;
+            pressedModifiers = modifiers;
+            i = end;
+        }
+
+        if (pressedEnd > pressedStart) {
+            putReport(buffer, 0, keymap, string, plan, 0, 0);
+        }
 
-        //select one symbol: select one with the least modifier keys
-        Iterator<Symbol> iterator = founds.iterator();
-        Symbol selected = founds.iterator().next();
-        while (iterator.hasNext()) {
-            Symbol symbol = iterator.next();
-            Keycode keycode = symbol.getKeycode();
-            Keysym keysym = symbol.getKeysym();
-            Keystate keystate = symbol.getKeystate();
+        return i - offset;
+    }
+
+    /**
+     * Get the keymap entry of a character, either from the plan or by looking up the preferred
+     * symbol of the character of the string.
+     *
+     * @return Returns the entry or {@link Keymap#NONE} if the character can't be produced.
+     */
+    private static int entry(Keymap keymap, CharSequence string, int[] plan, int index) {
+        return (plan != null) ? plan[index] : keymap.get(string.charAt(index));
+    }
 
-            Log.v(TAG, String.format("symbol: %s", symbol));
+    /**
+     * Find the character of a range which is produced by the given scancode. All characters in
+     * the range must be producible.
+     *
+     * @return Returns the index of the character or -1 if no character uses the scancode.
+     */
+    private static int indexOfScancode(Keymap keymap, CharSequence string, int[] plan, int start, int end, int scancode) {
+        for (int i = start; i < end; i++) {
+            if (Keymap.getScancode(entry(keymap, string, plan, i)) == scancode) {
+                return i;
+            }
+        }
 
-            Keystate selectedKeystate = selected.getKeystate();
-            int selectedOneBitCount = Integer.bitCount(selectedKeystate.getModifiers());
-            int oneBitCount = Integer.bitCount(keystate.getModifiers());
+        return -1;
+    }
 
-            if ((oneBitCount < selectedOneBitCount) || (oneBitCount == selectedOneBitCount && keystate.getModifiers() < selectedKeystate.getModifiers())) {
-                selected = symbol;
+    /**
+     * Check whether two ranges share a scancode.
+     *
+     * @return Returns true if any character of the first range uses the same scancode as any
+     * character of the second range.
+     */
+    private static boolean shareScancode(Keymap keymap, CharSequence string, int[] plan, int start1, int end1, int start2, int end2) {
+        for (int i = start2; i < end2; i++) {
+            if (indexOfScancode(keymap, string, plan, start1, end1, Keymap.getScancode(entry(keymap, string, plan, i))) != -1) {
+                return true;
             }
         }
 
-        byte[] bytes = new byte[16];
-        bytes[0] = (byte) selected.getKeystate().getModifiers();
-        bytes[2] = selected.getKeycode().getScancode().getValue().byteValue();
+        return false;
+    }
+
+    /**
+     * Write a keyboard event into the buffer which presses the keys of a range of characters.
+     *
+     * @param buffer    The buffer.
+     * @param modifiers The modifier byte.
+     * @param keymap    The keymap used to look up the characters of the string or null.
+     * @param string    The string or null if a plan is given.
+     * @param plan      The plan or null if a string is given.
+     * @param start     The index of the first character to press.
+     * @param end       The index after the last character to press. At most {@link #ROLLOVER_KEYS}
+     *                  characters can be pressed.
+     */
+    private static void putReport(ByteBuffer buffer, int modifiers, Keymap keymap, CharSequence string, int[] plan, int start, int end) {
+        buffer.put((byte) modifiers);
+        buffer.put((byte) 0);
+        int j = 2;
+        for (int i = start; i < end; i++, j++) {
+            buffer.put((byte) Keymap.getScancode(entry(keymap, string, plan, i)));
+        }
+        for (; j < REPORT_SIZE; j++) {
+            buffer.put((byte) 0);
+        }
+    }
+
+    /**
+     * Encode a character into a byte sequence which represent a keyboard event, when  written to
+     * the appropriate device, produce that character. Read <a href="https://github.com/pelya/android-keyboard-gadget#how-it-works">android-keyboard-gadget</a>
+     * or the USB HID specification for more details on the encoding.
+     *
+     * @param character The character to encode.
+     * @return Returns an encoded keyboard event of the input character. The keyboard event only
+     * presses the keys of the character, releasing them is up to the caller.
+     * @throws ConverterException When parts of the input string couldn't be encoded.
+     */
+    public byte[] convert(char character) throws ConverterException {
+        return convert(getLoadedKeymap(), character);
+    }
+
+    /**
+     * Encode a character using the given keymap.
+     *
+     * @param keymap    The keymap.
+     * @param character The character to encode.
+     * @return Returns an encoded keyboard event of the input character.
+     * @throws ConverterException When the character couldn't be encoded.
+     */
+    private byte[] convert(Keymap keymap, char character) throws ConverterException {
+        int entry = keymap.get(character);
+        if (entry == Keymap.NONE) {
+            throw new ConverterException(String.format("couldn't find symbols for character '%c'", character));
+        }
+
+        byte[] bytes = new byte[REPORT_SIZE];
+        bytes[0] = (byte) Keymap.getModifiers(entry);
+        bytes[2] = (byte) Keymap.getScancode(entry);
 
-        Log.v(TAG, String.format("converted character '%c' into keyboard data '%s'", character, Utils.bytesToHex(bytes, Utils.HexFormat.SPACING)));
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, String.format("converted character '%c' into keyboard data '%s'", character, Utils.bytesToHex(bytes, Utils.HexFormat.SPACING)));
+        }
 
         return bytes;
     }
@@ -166,17 +447,14 @@ public class Converter {
      *                    directory.
      * @throws FileManager.FileManagerException
      */
-    public synchronized void load(String keycodesId, String keysymsId, String scancodesId) throws FileManager.FileManagerException {
+    public void load(String keycodesId, String keysymsId, String scancodesId) throws FileManager.FileManagerException {
         Log.v(TAG, String.format("load keyboard converter {keycodeId=%s, keysymId=%s, scancodeId=%s}", keycodesId, keysymsId, scancodesId));
 
-        //TODO better handling of failed loading -> set all instances to null on error
-        scancodes = Scancodes.load(scancodesId);
-        keysyms = Keysyms.load(scancodesId);
-        keycodes = Keycodes.load(keycodesId);
+        Scancodes scancodes = Scancodes.load(scancodesId);
+        Keysyms keysyms = Keysyms.load(keysymsId);
+        Keycodes keycodes = Keycodes.load(keycodesId);
 
-        scancodes.build(this);
-        keysyms.build(this);
-        keycodes.build(this);
+        layout.set(CompiledLayout.build(keycodesId, keycodes, keysyms, scancodes));
     }
 
     /**
@@ -228,15 +506,53 @@ public class Converter {
         load(layout.getId(), keysymsId, scancodesId);
     }
 
-    public synchronized Keycodes getKeycodes() {
-        return keycodes;
+    /**
+     * Get the keymap of the active layout.
+     *
+     * @return Returns the keymap.
+     * @throws ConverterException When no layout was loaded yet.
+     */
+    private Keymap getLoadedKeymap() throws ConverterException {
+        CompiledLayout compiledLayout = layout.get();
+        if (compiledLayout == null) {
+            throw new ConverterException("no keycodes loaded");
+        }
+
+        return compiledLayout.getKeymap();
+    }
+
+    /**
+     * Get the active layout. The returned layout is immutable and stays consistent, even if a
+     * different layout gets loaded in the meantime.
+     *
+     * @return Returns the active layout or null if no layout was loaded yet.
+     */
+    public CompiledLayout getLayout() {
+        return layout.get();
+    }
+
+    public Keycodes getKeycodes() {
+        CompiledLayout compiledLayout = layout.get();
+        return (compiledLayout != null) ? compiledLayout.getKeycodes() : null;
+    }
+
+    public Keysyms getKeysyms() {
+        CompiledLayout compiledLayout = layout.get();
+        return (compiledLayout != null) ? compiledLayout.getKeysyms() : null;
+    }
+
+    public Scancodes getScancodes() {
+        CompiledLayout compiledLayout = layout.get();
+        return (compiledLayout != null) ? compiledLayout.getScancodes() : null;
     }
 
-    public synchronized Keysyms getKeysyms() {
-        return keysyms;
+    public Keymap getKeymap() {
+        CompiledLayout compiledLayout = layout.get();
+        return (compiledLayout != null) ? compiledLayout.getKeymap() : null;
     }
 
-    public synchronized Scancodes getScancodes() {
-        return scancodes;
+    public Decoder getDecoder() {
+        CompiledLayout compiledLayout = layout.get();
+        return (compiledLayout != null) ? compiledLayout.getDecoder() : null;
     }
 }
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Compiled lookup table which maps keyboard events back to the characters they produce. The table
+ * is the inverse of the {@link Keymap} and is built from the same tables: the scancode and
+ * modifier byte of every symbol are mapped to the character of the symbol's keysym.
+ * <p/>
+ * The table is organized in pages of 256 entries, one page per modifier byte, indexed by the
+ * scancode. Pages are only allocated for modifier bytes which are used by at least one symbol.
+ * If multiple symbols share the same scancode and modifier byte, the first symbol found wins.
+ * <p/>
+ * Keyboard events are decoded using a {@link Stream}, which keeps track of the pressed keys across
+ * keyboard events. A character is produced for every key which is pressed by a keyboard event,
+ * but wasn't pressed by the previous keyboard event, using the modifier byte of that keyboard
+ * event.
+ */
+public class Decoder {
+    /**
+     * Returned by {@link #get(int, int)} for keys which don't produce a character.
+     */
+    public static final int NONE = -1;
+
+    /**
+     * Produced by a {@link Stream} for pressed keys which don't produce a character.
+     */
+    public static final char REPLACEMENT = '\uFFFD';
+
+    /**
+     * The index of the first key in a keyboard event.
+     */
+    private static final int KEYS_OFFSET = 2;
+
+    /**
+     * Marks unmapped entries. The character is a Unicode noncharacter, hence it isn't produced by
+     * any keysym.
+     */
+    private static final char UNMAPPED = '\uFFFF';
+
+    private static final int PAGE_SIZE = 256;
+
+    /**
+     * The pages of the table indexed by the modifier byte. Unused pages are null.
+     */
+    private final char[][] pages = new char[PAGE_SIZE][];
+
+    /**
+     * Decodes a stream of keyboard events. The stream keeps the keys pressed by the last keyboard
+     * event and the bytes of an incomplete keyboard event, hence the keyboard events can be passed
+     * in arbitrary chunks. A stream must not be shared between threads.
+     */
+    public class Stream {
+        /**
+         * The keys pressed by the last keyboard event.
+         */
+        private final byte[] pressed = new byte[Converter.ROLLOVER_KEYS];
+
+        /**
+         * The bytes of an incomplete keyboard event.
+         */
+        private final byte[] partial = new byte[Converter.REPORT_SIZE];
+        private int partialLength = 0;
+
+        /**
+         * The number of pressed keys which didn't produce a character.
+         */
+        private long unmapped = 0;
+
+        private Stream() {
+
+        }
+
+        /**
+         * Decode the remaining bytes of the given buffer. Trailing bytes of an incomplete keyboard
+         * event are kept until the keyboard event is completed by the next buffer.
+         *
+         * @param buffer The buffer which contains the keyboard events.
+         * @param out    The decoded characters are appended to this builder. Pressed keys which
+         *               don't produce a character are appended as {@link #REPLACEMENT}.
+         * @return Returns the number of decoded characters.
+         */
+        public int decode(ByteBuffer buffer, StringBuilder out) {
+            int length = out.length();
+
+            if (partialLength > 0) {
+                int count = Math.min(buffer.remaining(), Converter.REPORT_SIZE - partialLength);
+                buffer.get(partial, partialLength, count);
+                partialLength += count;
+                if (partialLength < Converter.REPORT_SIZE) {
+                    return 0;
+                }
+
+                decode(partial, 0, out);
+                partialLength = 0;
+            }
+
+            if (buffer.hasArray()) {
+                byte[] array = buffer.array();
+                int position = buffer.arrayOffset() + buffer.position();
+                int end = position + buffer.remaining() - buffer.remaining() % Converter.REPORT_SIZE;
+                for (; position < end; position += Converter.REPORT_SIZE) {
+                    decode(array, position, out);
+                }
+                buffer.position(end - buffer.arrayOffset());
+            } else {
+                while (buffer.remaining() >= Converter.REPORT_SIZE) {
+                    buffer.get(partial, 0, Converter.REPORT_SIZE);
+                    decode(partial, 0, out);
+                }
+            }
+
+            partialLength = buffer.remaining();
+            buffer.get(partial, 0, partialLength);
+
+            return out.length() - length;
+        }
+
+        /**
+         * Decode a single keyboard event.
+         */
+        private void decode(byte[] report, int offset, StringBuilder out) {
+            int modifiers = report[offset] & 0xFF;
+            char[] page = pages[modifiers];
+
+            for (int i = 0; i < Converter.ROLLOVER_KEYS; i++) {
+                byte key = report[offset + KEYS_OFFSET + i];
+                if (key == 0 || isPressed(key)) {
+                    continue;
+                }
+
+                char character = (page != null) ? page[key & 0xFF] : UNMAPPED;
+                if (character == UNMAPPED) {
+                    unmapped++;
+                    out.append(REPLACEMENT);
+                } else {
+                    out.append(character);
+                }
+            }
+
+            System.arraycopy(report, offset + KEYS_OFFSET, pressed, 0, Converter.ROLLOVER_KEYS);
+        }
+
+        private boolean isPressed(byte key) {
+            for (byte pressedKey : pressed) {
+                if (pressedKey == key) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * Release all keys and discard an incomplete keyboard event.
+         */
+        public void reset() {
+            for (int i = 0; i < pressed.length; i++) {
+                pressed[i] = 0;
+            }
+            partialLength = 0;
+        }
+
+        /**
+         * Get the number of pressed keys which didn't produce a character.
+         *
+         * @return Returns the number of keys.
+         */
+        public long getUnmappedCount() {
+            return unmapped;
+        }
+
+        /**
+         * Check whether the stream holds the bytes of an incomplete keyboard event.
+         *
+         * @return Returns true if an incomplete keyboard event is pending.
+         */
+        public boolean hasPartial() {
+            return partialLength > 0;
+        }
+    }
+
+    private Decoder() {
+
+    }
+
+    /**
+     * Compile the decoder from the given keycodes.
+     *
+     * @param keycodes The built keycodes.
+     * @return Returns the compiled decoder.
+     */
+    public static Decoder build(Keycodes keycodes) {
+        Decoder decoder = new Decoder();
+
+        for (Keycode keycode : keycodes.getKeycodes()) {
+            Collection<Symbol> symbols = keycode.getSymbols();
+            Scancode scancode = keycode.getScancode();
+            if (symbols == null || scancode == null) {
+                continue;
+            }
+
+            int scancodeValue = scancode.getValue() & 0xFF;
+            if (scancodeValue == 0) {
+                continue;
+            }
+
+            for (Symbol symbol : symbols) {
+                Keysym keysym = symbol.getKeysym();
+                if (!keysym.isPrintable()) {
+                    continue;
+                }
+
+                int modifiers = symbol.getKeystate().getModifiers() & 0xFF;
+                decoder.putIfAbsent(modifiers, scancodeValue, keysym.getUnicode().getCharacter());
+            }
+        }
+
+        return decoder;
+    }
+
+    private void putIfAbsent(int modifiers, int scancode, char character) {
+        char[] page = pages[modifiers];
+        if (page == null) {
+            page = new char[PAGE_SIZE];
+            Arrays.fill(page, UNMAPPED);
+            pages[modifiers] = page;
+        }
+
+        if (page[scancode] == UNMAPPED) {
+            page[scancode] = character;
+        }
+    }
+
+    /**
+     * Lookup the character produced by a key.
+     *
+     * @param modifiers The modifier byte.
+     * @param scancode  The scancode of the key.
+     * @return Returns the character or {@link #NONE} if the key doesn't produce a character.
+     */
+    public int get(int modifiers, int scancode) {
+        char[] page = pages[modifiers & 0xFF];
+        if (page == null) {
+            return NONE;
+        }
+
+        char character = page[scancode & 0xFF];
+
+        return (character == UNMAPPED) ? NONE : character;
+    }
+
+    /**
+     * Create a stream which decodes keyboard events using this decoder.
+     *
+     * @return Returns the stream.
+     */
+    public Stream newStream() {
+        return new Stream();
+    }
+
+    /**
+     * Decode the keyboard events of the given buffer, starting with all keys released.
+     *
+     * @param buffer The buffer which contains the keyboard events.
+     * @return Returns the decoded characters.
+     */
+    public String decode(ByteBuffer buffer) {
+        StringBuilder out = new StringBuilder(buffer.remaining() / Converter.REPORT_SIZE);
+        newStream().decode(buffer, out);
+
+        return out.toString();
+    }
+}
@@ -16,206 +16,904 @@
  */
 package io.github.minime89.passbeam.keyboard;
 
-import android.app.IntentService;
-import android.content.Context;
-import android.content.Intent;
-import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
 import android.util.Log;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import io.github.minime89.passbeam.PassBeamApplication;
-import io.github.minime89.passbeam.R;
-import io.github.minime89.passbeam.Utils;
+import io.github.minime89.passbeam.LatencyTracer;
+import io.github.minime89.passbeam.PassBeamConfig;
+import io.github.minime89.passbeam.PassBeamService;
 
 /**
- * Service for writing strings to the HID keyboard device which outputs them over USB. Superuser
- * privileges are requested to write to the HID keyboard device file. The service handles any
- * operations in a background thread.
+ * Writer for strings to a HID keyboard device which outputs them over USB. Superuser
+ * privileges are requested to write to the HID keyboard device file.
+ * <p/>
+ * Every writer serves a single {@link PassBeamConfig.Output} and owns its own converter, pacing
+ * and queue, hence multiple writers can write to different keyboard devices concurrently without
+ * a slow host throttling the others. Strings are encoded into keyboard events by the calling
+ * thread using the keyboard layout of the writer and added to a bounded queue of report buffers.
+ * A long-lived writer thread takes the report buffers from the queue and writes them to the
+ * device. The {@link HidSink} is created by a {@link HidSink.Factory}, which creates a
+ * {@link RootHidSink} for the keyboard device of the output by default. The sink is opened on the
+ * first write and kept open between writes, hence the superuser session stays warm until the
+ * writer is stopped or the device fails. The session can be opened in advance using
+ * {@link #openSession()}, e.g. when the device gets connected, so the first write doesn't wait for
+ * the superuser process to start. If the queue is full, the {@link OverflowPolicy} decides whether
+ * the caller waits, the string is rejected or the oldest queued string is dropped.
+ * <p/>
+ * If host feedback is enabled for the output, a {@link HostMonitor} reads the output reports of the
+ * host while the session is open. The writer uses them in two ways:
+ * <p/>
+ * 1. If Caps Lock is enabled on the host, it is disabled by pressing Caps Lock before the next
+ * keyboard event and enabled again after the string was written, instead of producing the string
+ * with inverted case. The writer keeps the Caps Lock states it expects the host to report in
+ * answer to its toggles, hence late answers aren't mistaken for changes of the host.<br>
+ * 2. Caps Lock changes which don't answer a toggle of the writer, as well as writes which blocked
+ * longer than the interval are reported as hiccups to the {@link Pacer}, which slows down in
+ * {@link Pacer.Mode#ADAPTIVE}. Changes of Num Lock and Scroll Lock are ignored.
+ * <p/>
+ * The stages of every string are recorded by the {@link LatencyTracer}.
+ * <p/>
+ * The writers are owned by the {@link PassBeamService}, see {@link #write(String)} and
+ * {@link #write(String, String)}.
  */
-public class DeviceWriter extends IntentService {
+public class DeviceWriter {
     private static final String TAG = DeviceWriter.class.getSimpleName();
+
+    /**
+     * The default number of strings which can be queued.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 8;
+
+    /**
+     * The time a caller waits for space in the queue in {@link OverflowPolicy#BLOCK}.
+     */
+    private static final int BLOCK_TIMEOUT = 2;
+
+    /**
+     * The scancode of the Caps Lock key.
+     */
+    private static final int CAPS_LOCK_SCANCODE = 57;
+
+    /**
+     * The keyboard events which press and release Caps Lock.
+     */
+    private static final byte[] CAPS_LOCK_REPORTS = new byte[2 * Converter.REPORT_SIZE];
+
+    static {
+        CAPS_LOCK_REPORTS[2] = CAPS_LOCK_SCANCODE;
+    }
+
+    /**
+     * The maximum number of Caps Lock toggles per string, in case the host doesn't apply them.
+     */
+    private static final int MAX_CAPS_LOCK_TOGGLES = 4;
+
+    /**
+     * The maximum number of Caps Lock toggles which are expected to be answered by the host. The
+     * oldest toggles are forgotten if the host doesn't answer them.
+     */
+    private static final int MAX_CAPS_LOCK_EXPECTED = 2 * MAX_CAPS_LOCK_TOGGLES;
+
+    /**
+     * The policies applied when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * The caller waits for space in the queue. The string is rejected if no space became
+         * available within {@link #BLOCK_TIMEOUT} seconds.
+         */
+        BLOCK,
+        /**
+         * The string is rejected.
+         */
+        REJECT,
+        /**
+         * The oldest queued string is dropped to make space for the string.
+         */
+        DROP_OLDEST
+    }
+
+    /**
+     * Entry of the queue. Contains the report buffer of a string together with the ID of its
+     * trace.
+     */
+    private static class Job {
+        private final ByteBuffer buffer;
+        private final int trace;
+
+        private Job(ByteBuffer buffer, int trace) {
+            this.buffer = buffer;
+            this.trace = trace;
+        }
+    }
+
+    /**
+     * No session request is pending.
+     */
+    private static final int SESSION_NONE = 0;
+
+    /**
+     * The writer thread should open the sink in advance.
+     */
+    private static final int SESSION_OPEN = 1;
+
+    /**
+     * The writer thread should close the sink.
+     */
+    private static final int SESSION_CLOSE = 2;
+
+    /**
+     * The keyboard symbol converter of the output.
+     */
+    private final Converter converter = new Converter();
+
+    /**
+     * The settings of the output. Replaced when the settings change, see
+     * {@link #setOutput(PassBeamConfig.Output)}.
+     */
+    private volatile PassBeamConfig.Output output;
+
+    /**
+     * The policy applied by {@link #submit(ByteBuffer, int)} when the queue is full.
+     */
+    private final OverflowPolicy overflowPolicy;
+
+    /**
+     * The queue which contains the encoded report buffers of the requested strings.
+     */
+    private final BlockingQueue<Job> queue;
+
+    /**
+     * The pending session request for the writer thread. Kept outside of the queue, hence session
+     * requests don't take the space of strings and repeated requests replace each other.
+     */
+    private final AtomicInteger sessionRequest = new AtomicInteger(SESSION_NONE);
+
+    /**
+     * The lock the writer thread waits on for queued strings and session requests.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * Creates the sink when the writer thread opens a session. Sinks are created again after a
+     * failed write, since the failed sink was closed.
+     */
+    private final HidSink.Factory sinkFactory;
+
+    /**
+     * The writer thread.
+     */
+    private Thread thread;
+
+    /**
+     * The sink of the writer thread. Only accessed by the writer thread.
+     */
+    private HidSink sink;
+
+    /**
+     * The monitor for the output reports of the host. Runs while the sink is open, if host
+     * feedback is enabled.
+     */
+    private final HostMonitor hostMonitor;
+
+    /**
+     * The pacer of the writer thread, which is kept between strings to keep the adapted interval.
+     */
+    private Pacer pacer;
+
+    /**
+     * The output the pacer was created for.
+     */
+    private PassBeamConfig.Output pacerOutput;
+
+    /**
+     * The number of output reports handled by the writer thread.
+     */
+    private long outputReports;
+
     /**
-     * The time the service waits for new string write requests before shutting down.
+     * Whether Caps Lock is enabled on the host, according to the last output report and the
+     * toggles of the writer thread since then.
      */
-    private static final int SERVICE_TIMEOUT = 2;
+    private boolean capsLock;
 
     /**
-     * The keyboard symbol converter.
+     * The LED state of the last output report handled by the writer thread.
      */
-    private static final Converter converter = new Converter();
+    private int hostLeds = HostMonitor.LEDS_UNKNOWN;
 
     /**
-     * The queue which contains the string write requests.
+     * The Caps Lock states the host is expected to report in answer to the toggles of the writer
+     * thread, oldest first.
      */
-    private static final BlockingQueue<String> stringQueue = new LinkedBlockingQueue<>();
+    private final ArrayDeque<Boolean> capsLockExpected = new ArrayDeque<>();
 
     /**
-     * The list of requested intents processed by the service.
+     * Whether Caps Lock was disabled by the writer thread and needs to be enabled again.
      */
-    private static final List<Intent> intentsList = new ArrayList<>();
+    private boolean capsLockRestore;
+
+    /**
+     * The number of Caps Lock toggles of the current string.
+     */
+    private int capsLockToggles;
 
     /**
      * Constructor.
+     *
+     * @param output         The output.
+     * @param overflowPolicy The policy applied when the queue is full.
+     * @param queueCapacity  The number of strings which can be queued.
      */
-    public DeviceWriter() {
-        super("DeviceWriter");
+    public DeviceWriter(PassBeamConfig.Output output, OverflowPolicy overflowPolicy, int queueCapacity) {
+        this(output, overflowPolicy, queueCapacity, null);
     }
 
     /**
-     * Process the string write requests triggered by {@link DeviceWriter#write(String)}.
-     * The method will proceed as following:
-     * <p/>
-     * 1. Create new process which switches to super user<br>
-     * 2. Process all strings added to {@link DeviceWriter#stringQueue}.<br>
-     * &nbsp;&nbsp;2.1 Convert string to encoded keyboard event<br>
-     * &nbsp;&nbsp;2.2 Write each event to the device<br>
-     * 3. End the process
-     * <p/>
-     * In step 2 all strings will be processed from {@link DeviceWriter#stringQueue} and
-     * some time (determined by {@link DeviceWriter#SERVICE_TIMEOUT} will be waited for new
-     * string write requests to arrive. If no new string write requests arrive within this time, the
-     * process will be exited and the service shuts down.
+     * Constructor.
+     *
+     * @param output         The output.
+     * @param overflowPolicy The policy applied when the queue is full.
+     * @param queueCapacity  The number of strings which can be queued.
+     * @param sinkFactory    Creates the sinks the keyboard events are written to or null to
+     *                       create sinks for the keyboard device of the output.
+     */
+    public DeviceWriter(PassBeamConfig.Output output, OverflowPolicy overflowPolicy, int queueCapacity, HidSink.Factory sinkFactory) {
+        this(output, overflowPolicy, queueCapacity, sinkFactory, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param output         The output.
+     * @param overflowPolicy The policy applied when the queue is full.
+     * @param queueCapacity  The number of strings which can be queued.
+     * @param sinkFactory    Creates the sinks the keyboard events are written to or null to
+     *                       create sinks for the keyboard device of the output.
+     * @param sourceFactory  Creates the sources the output reports are read from or null to
+     *                       create sources for the keyboard device of the output. Only used if
+     *                       host feedback is enabled for the output.
+     */
+    public DeviceWriter(PassBeamConfig.Output output, OverflowPolicy overflowPolicy, int queueCapacity, HidSink.Factory sinkFactory, HidSource.Factory sourceFactory) {
+        this.output = output;
+        this.overflowPolicy = overflowPolicy;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.sinkFactory = (sinkFactory != null) ? sinkFactory : new HidSink.Factory() {
+            @Override
+            public HidSink create() {
+                return DeviceWriter.this.output.createSink();
+            }
+        };
+        this.hostMonitor = new HostMonitor((sourceFactory != null) ? sourceFactory : new HidSource.Factory() {
+            @Override
+            public HidSource create() {
+                return DeviceWriter.this.output.createSource();
+            }
+        });
+    }
+
+    /**
+     * Start the writer thread.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+
+        Log.v(TAG, String.format("start keyboard device writer for '%s'", output.getDevice()));
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                process();
+            }
+        }, String.format("%s %s", TAG, output.getDevice()));
+        thread.start();
+    }
+
+    /**
+     * Stop the writer thread. Queued strings which weren't written yet are discarded and the sink
+     * is closed by the writer thread.
+     */
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+
+        Log.v(TAG, String.format("stop keyboard device writer for '%s'", output.getDevice()));
+
+        thread.interrupt();
+        thread = null;
+
+        discard();
+    }
+
+    /**
+     * Open the sink in advance. The superuser process will be started and the device will be
+     * opened by the writer thread, while the caller returns immediately.
+     */
+    public void openSession() {
+        Log.v(TAG, "request to open keyboard device session");
+
+        sessionRequest.set(SESSION_OPEN);
+        wake();
+    }
+
+    /**
+     * Close the sink. Queued strings which weren't written yet are discarded, since they were
+     * requested for the previously connected host.
      */
-    private void suWrite() {
-        Log.v(TAG, "starting superuser keyboard device writer");
+    public void closeSession() {
+        Log.v(TAG, "request to close keyboard device session");
 
-        //get preference characterTimeout
-        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
-        String characterTimeoutStr = sharedPreferences.getString(getString(R.string.settings_character_timeout_key), "20");
-        int characterTimeout = Integer.parseInt(characterTimeoutStr);
+        discard();
 
-        Process process;
-        int processReturnCode = -1;
+        sessionRequest.set(SESSION_CLOSE);
+        wake();
+    }
+
+    /**
+     * Wake up the writer thread after a string was queued or a session was requested.
+     */
+    private void wake() {
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Discard all queued strings.
+     */
+    private void discard() {
+        Job job;
+        while ((job = queue.poll()) != null) {
+            clear(job.buffer);
+        }
+    }
+
+    /**
+     * Encode the given string and add it to the queue of the writer thread. The method returns
+     * after the string was queued, the writing itself is done in the background.
+     *
+     * @param str The string.
+     * @return Returns true if the string was queued, false if it couldn't be encoded or was
+     * rejected by the {@link OverflowPolicy}.
+     */
+    public boolean submit(String str) {
+        return submit(str, LatencyTracer.begin());
+    }
+
+    /**
+     * Encode the given string and add it to the queue of the writer thread as part of an existing
+     * trace, see {@link #submit(String)}.
+     *
+     * @param str   The string.
+     * @param trace The ID of the trace, see {@link LatencyTracer#begin()}.
+     * @return Returns true if the string was queued, false if it couldn't be encoded or was
+     * rejected by the {@link OverflowPolicy}.
+     */
+    public boolean submit(String str, int trace) {
+        ByteBuffer buffer = encode(str, PassBeamConfig.get().isRollover(), trace);
+
+        return buffer != null && submit(buffer, trace);
+    }
+
+    /**
+     * Encode the given string into a report buffer which can be queued using
+     * {@link #submit(ByteBuffer)}. The string is encoded using the keyboard layout of the writer.
+     *
+     * @param str      The string.
+     * @param rollover Whether multiple characters should be pressed by a single keyboard event.
+     * @return Returns the report buffer, ready to be read, or null if the string couldn't be
+     * encoded.
+     */
+    public ByteBuffer encode(String str, boolean rollover) {
+        return encode(str, rollover, LatencyTracer.NO_TRACE);
+    }
+
+    /**
+     * Encode the given string into a report buffer as part of a trace, see
+     * {@link #encode(String, boolean)}.
+     *
+     * @param str      The string.
+     * @param rollover Whether multiple characters should be pressed by a single keyboard event.
+     * @param trace    The ID of the trace, see {@link LatencyTracer#begin()}.
+     * @return Returns the report buffer, ready to be read, or null if the string couldn't be
+     * encoded.
+     */
+    public ByteBuffer encode(String str, boolean rollover, int trace) {
+        LatencyTracer.record(trace, LatencyTracer.Stage.CONVERT_START);
         try {
-            // load new process which switches to superuser
-            process = Runtime.getRuntime().exec("su");
+            int[] plan = converter.plan(str);
+            ByteBuffer buffer = ByteBuffer.allocate(2 * plan.length * Converter.REPORT_SIZE);
+            converter.convert(plan, 0, buffer, rollover);
+            buffer.flip();
+            LatencyTracer.record(trace, LatencyTracer.Stage.CONVERT_END);
+
+            return buffer;
+        } catch (Converter.ConverterException e) {
+            Log.e(TAG, String.format("couldn't convert string: %s", e.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * Add an encoded report buffer to the queue of the writer thread. The keyboard events between
+     * the position and the limit of the buffer are written. The writer takes ownership of the
+     * buffer and overwrites it after it was written.
+     *
+     * @param buffer The report buffer, see {@link #encode(String, boolean)}. Must be backed by an
+     *               accessible array.
+     * @return Returns true if the buffer was queued, false if it was rejected by the
+     * {@link OverflowPolicy}.
+     * @throws IllegalArgumentException When the buffer isn't backed by an accessible array.
+     */
+    public boolean submit(ByteBuffer buffer) {
+        return submit(buffer, LatencyTracer.begin());
+    }
+
+    /**
+     * Add an encoded report buffer to the queue of the writer thread as part of an existing trace,
+     * see {@link #submit(ByteBuffer)}.
+     *
+     * @param buffer The report buffer, see {@link #encode(String, boolean, int)}. Must be backed by
+     *               an accessible array.
+     * @param trace  The ID of the trace, see {@link LatencyTracer#begin()}.
+     * @return Returns true if the buffer was queued, false if it was rejected by the
+     * {@link OverflowPolicy}.
+     * @throws IllegalArgumentException When the buffer isn't backed by an accessible array.
+     */
+    public boolean submit(ByteBuffer buffer, int trace) {
+        if (!buffer.hasArray()) {
+            throw new IllegalArgumentException("report buffer must be backed by an accessible array");
+        }
+
+        if (!buffer.hasRemaining()) {
+            return true;
+        }
 
-            DataOutputStream os = new DataOutputStream(process.getOutputStream());
+        LatencyTracer.record(trace, LatencyTracer.Stage.QUEUED);
 
-            while (true) {
-                String str = stringQueue.poll(SERVICE_TIMEOUT, TimeUnit.SECONDS);
-                if (str == null) {
-                    break;
+        Job job = new Job(buffer, trace);
+        boolean queued = false;
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    queued = queue.offer(job, BLOCK_TIMEOUT, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                break;
+            case REJECT:
+                queued = queue.offer(job);
+                break;
+            case DROP_OLDEST:
+                while (!(queued = queue.offer(job))) {
+                    Job dropped = queue.poll();
+                    if (dropped != null) {
+                        Log.w(TAG, "keyboard device writer queue is full, dropped oldest string");
+                        clear(dropped.buffer);
+                    }
+                }
+                break;
+        }
+
+        if (!queued) {
+            Log.e(TAG, "keyboard device writer queue is full, rejected string");
+            clear(buffer);
+            return false;
+        }
+
+        wake();
+
+        Log.v(TAG, String.format("added %d keyboard events to keyboard device writer queue", buffer.limit() / Converter.REPORT_SIZE));
+
+        return true;
+    }
+
+    /**
+     * The loop of the writer thread. Takes report buffers from the queue and writes them to the
+     * sink until the thread gets interrupted.
+     */
+    private void process() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                processSessionRequest();
+
+                Job job = take();
+                if (job == null) {
+                    continue;
                 }
 
-                Log.v(TAG, String.format("process string from keyboard device writer queue '%s'", str));
+                LatencyTracer.record(job.trace, LatencyTracer.Stage.DEQUEUED);
 
                 try {
-                    Collection<byte[]> encodedCharacters = converter.convert(str);
+                    write(job.buffer, job.trace);
+                } catch (IOException e) {
+                    Log.e(TAG, String.format("couldn't write to device file: %s", e.getMessage()));
+                    closeSink();
+                } finally {
+                    clear(job.buffer);
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.v(TAG, "keyboard device writer was interrupted");
+        } finally {
+            closeSink();
+        }
+    }
 
-                    for (byte[] encodedCharacter : encodedCharacters) {
-                        String cmd = "";
-                        cmd += String.format("echo -n -e \"%s\" > /dev/hidg0\n", Utils.bytesToHex(encodedCharacter, Utils.HexFormat.UNIX));
-                        cmd += String.format("sleep %f\n", (characterTimeout / 1000.0));
+    /**
+     * Open or close the sink if a session was requested since the last call.
+     */
+    private void processSessionRequest() {
+        switch (sessionRequest.getAndSet(SESSION_NONE)) {
+            case SESSION_OPEN:
+                try {
+                    openSink();
+                } catch (IOException e) {
+                    //the next write tries to open the sink again
+                    Log.e(TAG, String.format("couldn't open device file: %s", e.getMessage()));
+                }
+                break;
+            case SESSION_CLOSE:
+                closeSink();
+                break;
+        }
+    }
 
-                        os.writeBytes(cmd);
-                        os.flush();
-                    }
-                } catch (Converter.ConverterException e) {
-                    Log.e(TAG, String.format("couldn't convert string '%s'", str));
+    /**
+     * Wait until a string was queued or a session was requested. A session request is processed
+     * before the queued strings, since strings queued after it are meant for the new session.
+     *
+     * @return Returns the next queued job or null if a session was requested.
+     * @throws InterruptedException Thrown if the writer thread was interrupted while waiting.
+     */
+    private Job take() throws InterruptedException {
+        synchronized (lock) {
+            while (sessionRequest.get() == SESSION_NONE) {
+                Job job = queue.poll();
+                if (job != null) {
+                    return job;
                 }
+
+                lock.wait();
             }
 
-            // close
-            os.writeBytes("exit\n");
-            os.flush();
+            return null;
+        }
+    }
 
-            // check execution result
-            process.waitFor();
-            processReturnCode = process.exitValue();
-            if (processReturnCode != 0) {
-                throw new RuntimeException();
+    /**
+     * Write the keyboard events of a report buffer to the sink, which will be opened if necessary.
+     *
+     * @param buffer The report buffer.
+     * @param trace  The ID of the trace.
+     * @throws IOException          When the keyboard events couldn't be written.
+     * @throws InterruptedException When the writer thread was interrupted.
+     */
+    private void write(ByteBuffer buffer, int trace) throws IOException, InterruptedException {
+        PassBeamConfig.Output output = this.output;
+
+        // start superuser session
+        openSink();
+        LatencyTracer.record(trace, LatencyTracer.Stage.SESSION_READY);
+
+        Pacer pacer = getPacer(output);
+        pacer.start();
+        boolean feedback = hostMonitor.isRunning() && !hostMonitor.isFailed();
+        capsLockToggles = 0;
+
+        byte[] bytes = buffer.array();
+        int first = buffer.arrayOffset() + buffer.position();
+        int last = buffer.arrayOffset() + buffer.limit() - Converter.REPORT_SIZE;
+        for (int position = first; position <= last; position += Converter.REPORT_SIZE) {
+            if (feedback) {
+                processHostFeedback(pacer);
+            }
+
+            writeReport(pacer, bytes, position);
+
+            if (position == first) {
+                LatencyTracer.record(trace, LatencyTracer.Stage.FIRST_REPORT);
+            }
+        }
+
+        if (capsLockRestore) {
+            capsLockRestore = false;
+            if (!capsLock) {
+                Log.v(TAG, "enable Caps Lock on the host again");
+                toggleCapsLock(pacer);
             }
-        } catch (IOException e) {
-            Log.e(TAG, String.format("couldn't write to device file: %s", e.getMessage()));
-        } catch (InterruptedException e) {
-            Log.e(TAG, "keyboard device writer was interrupted");
-        } catch (RuntimeException e) {
-            Log.e(TAG, String.format("superuser process exited with code %d", processReturnCode));
         }
+        LatencyTracer.record(trace, LatencyTracer.Stage.LAST_REPORT);
+
+        Log.v(TAG, String.format("wrote %d keyboard events at %.1f/s (target %.1f/s)", pacer.getCount(), pacer.getAchievedRate(), pacer.getTargetRate()));
     }
 
     /**
-     * Stops any requested intents, except for one. This is necessary because {@link DeviceWriter#write(String)}
-     * adds the string to {@link DeviceWriter#stringQueue} and requests an intent every time
-     * a new string is requested to be written to the device. The service itself however, processes
-     * all elements in {@link DeviceWriter#stringQueue} and waits for some time for new
-     * string write requests before shutting down; hence the service does not need to be started for
-     * every string write request separately.
+     * Write a single keyboard event to the sink. A write which blocked longer than the current
+     * interval is reported to the pacer, since the host doesn't keep up.
      *
-     * @see DeviceWriter#addIntentQueue(Intent)
+     * @param pacer    The pacer.
+     * @param bytes    The keyboard events.
+     * @param position The position of the keyboard event.
+     * @throws IOException          When the keyboard event couldn't be written.
+     * @throws InterruptedException When the writer thread was interrupted.
      */
-    private void clearIntentQueue() {
-        synchronized (intentsList) {
-            for (int i = 1; i < intentsList.size(); i++) {
-                stopService(intentsList.get(i));
+    private void writeReport(Pacer pacer, byte[] bytes, int position) throws IOException, InterruptedException {
+        pacer.await();
+        long start = System.nanoTime();
+        sink.write(bytes, position, Converter.REPORT_SIZE);
+        long duration = System.nanoTime() - start;
+        pacer.written();
+
+        if (duration > pacer.getCurrentInterval()) {
+            pacer.backOff();
+        }
+    }
+
+    /**
+     * Handle the output reports the host sent since the last keyboard event and disable Caps Lock
+     * if it is enabled on the host. A change of Caps Lock which doesn't answer a toggle of the
+     * writer thread, e.g. because the host enumerated the device again or the user pressed Caps
+     * Lock on another keyboard, is reported to the pacer. Changes of the other LEDs are ignored.
+     *
+     * @param pacer The pacer.
+     * @throws IOException          When Caps Lock couldn't be toggled.
+     * @throws InterruptedException When the writer thread was interrupted.
+     */
+    private void processHostFeedback(Pacer pacer) throws IOException, InterruptedException {
+        long reportCount = hostMonitor.getReportCount();
+        int leds = hostMonitor.getLeds();
+        if (reportCount != outputReports && leds != HostMonitor.LEDS_UNKNOWN) {
+            long reports = reportCount - outputReports;
+            outputReports = reportCount;
+
+            boolean hostCapsLock = (leds & HostMonitor.LED_CAPS_LOCK) != 0;
+            boolean changed = hostLeds != HostMonitor.LEDS_UNKNOWN && hostCapsLock != ((hostLeds & HostMonitor.LED_CAPS_LOCK) != 0);
+            if (!answerCapsLockToggles(hostCapsLock, reports) && changed) {
+                Log.w(TAG, String.format("unexpected Caps Lock change on the host {capsLock=%b}, slow down", hostCapsLock));
+                capsLockExpected.clear();
+                pacer.backOff();
             }
+            hostLeds = leds;
+
+            if (capsLockExpected.isEmpty()) {
+                capsLock = hostCapsLock;
+            }
+        }
+
+        if (capsLock && capsLockToggles < MAX_CAPS_LOCK_TOGGLES) {
+            Log.v(TAG, "Caps Lock is enabled on the host, disable it while writing");
+            toggleCapsLock(pacer);
+            capsLockRestore = true;
         }
     }
 
     /**
-     * Add an intent to {@link DeviceWriter#intentsList}. This keeps track of any requested
-     * intents which will be processed automatically one after another.
+     * Remove the Caps Lock toggles answered by the given output reports from the expected Caps
+     * Lock states. Every output report answers at most one toggle, hence only the states of as
+     * many toggles as output reports were received are compared to the Caps Lock state of the
+     * host.
      *
-     * @param intent The intent.
-     * @see DeviceWriter#clearIntentQueue()
+     * @param hostCapsLock The Caps Lock state of the last output report.
+     * @param reports      The number of output reports received since the last call.
+     * @return Returns true if the output reports answered at least one toggle.
      */
-    private void addIntentQueue(Intent intent) {
-        synchronized (intentsList) {
-            intentsList.add(intent);
+    private boolean answerCapsLockToggles(boolean hostCapsLock, long reports) {
+        int answered = 0;
+        Iterator<Boolean> iterator = capsLockExpected.iterator();
+        while (iterator.hasNext() && answered < reports) {
+            answered++;
+            if (iterator.next() == hostCapsLock) {
+                for (int i = 0; i < answered; i++) {
+                    capsLockExpected.poll();
+                }
+                return true;
+            }
         }
+
+        return false;
     }
 
     /**
-     * Request the service to write the given string as a HID keyboard. The request will start the
-     * service, encode the string into the appropriate output format and write the data to the
-     * device using superuser privileges.
+     * Press and release Caps Lock.
+     *
+     * @param pacer The pacer.
+     * @throws IOException          When the keyboard events couldn't be written.
+     * @throws InterruptedException When the writer thread was interrupted.
+     */
+    private void toggleCapsLock(Pacer pacer) throws IOException, InterruptedException {
+        writeReport(pacer, CAPS_LOCK_REPORTS, 0);
+        writeReport(pacer, CAPS_LOCK_REPORTS, Converter.REPORT_SIZE);
+
+        capsLock = !capsLock;
+        capsLockToggles++;
+
+        if (capsLockExpected.size() == MAX_CAPS_LOCK_EXPECTED) {
+            capsLockExpected.poll();
+        }
+        capsLockExpected.add(capsLock);
+    }
+
+    /**
+     * Get the pacer for the given output. The pacer is only replaced when the settings of the
+     * output changed.
+     *
+     * @param output The output.
+     * @return Returns the pacer.
+     */
+    private Pacer getPacer(PassBeamConfig.Output output) {
+        if (pacer == null || pacerOutput != output) {
+            pacer = output.createPacer();
+            pacerOutput = output;
+        }
+
+        return pacer;
+    }
+
+    /**
+     * Start or stop the host monitor, depending on whether host feedback is enabled for the
+     * output. The Caps Lock state is reset when the monitor is started.
+     *
+     * @param output The output.
+     */
+    private void updateHostMonitor(PassBeamConfig.Output output) {
+        if (output.isHostFeedback() && !hostMonitor.isRunning()) {
+            //taken before the monitor thread can receive the first output report
+            outputReports = hostMonitor.getReportCount();
+            hostLeds = HostMonitor.LEDS_UNKNOWN;
+            capsLock = false;
+            capsLockExpected.clear();
+            capsLockRestore = false;
+
+            hostMonitor.start();
+        } else if (!output.isHostFeedback() && hostMonitor.isRunning()) {
+            hostMonitor.stop();
+        }
+    }
+
+    /**
+     * Open the sink of the writer thread, unless it is already open. The host monitor is started
+     * or stopped in both cases, since the host feedback setting may have changed while the sink
+     * was open.
+     *
+     * @throws IOException When the sink couldn't be opened.
+     */
+    private void openSink() throws IOException {
+        PassBeamConfig.Output output = this.output;
+
+        if (sink == null) {
+            long start = System.nanoTime();
+            HidSink sink = sinkFactory.create();
+            sink.open();
+            this.sink = sink;
+
+            Log.v(TAG, String.format("opened keyboard device session for '%s' in %d ms", output.getDevice(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        }
+
+        updateHostMonitor(output);
+    }
+
+    /**
+     * Close the sink of the writer thread.
+     */
+    private void closeSink() {
+        hostMonitor.stop();
+
+        if (sink == null) {
+            return;
+        }
+
+        try {
+            sink.close();
+        } catch (IOException e) {
+            Log.e(TAG, String.format("couldn't close device file: %s", e.getMessage()));
+        } finally {
+            sink = null;
+        }
+    }
+
+    /**
+     * Overwrite the keyboard events of a report buffer, since they contain the written string. The
+     * whole content of the buffer is overwritten, regardless of its position and limit.
+     *
+     * @param buffer The report buffer, which must be backed by an accessible array.
+     */
+    public static void clear(ByteBuffer buffer) {
+        int offset = buffer.arrayOffset();
+        Arrays.fill(buffer.array(), offset, offset + buffer.capacity(), (byte) 0);
+    }
+
+    /**
+     * Request to write the given string as a HID keyboard using the writer of the primary output
+     * of the {@link PassBeamService}.
      * <p/>
-     * The method will return immediately and no feedback is returned by the service (for now).
+     * The method will return immediately and no feedback is returned by the writer (for now).
      *
      * @param str The string.
+     * @return Returns true if the string was queued.
      */
-    public static void write(String str) {
-        Log.v(TAG, String.format("added string to keyboard device writer queue '%s'", str));
+    public static boolean write(String str) {
+        PassBeamService service = PassBeamService.getInstance();
+        if (service == null) {
+            Log.e(TAG, "couldn't write string, service isn't running");
+            return false;
+        }
+
+        return service.getDeviceWriter().submit(str);
+    }
 
-        stringQueue.add(str);
+    /**
+     * Request to write the given string as a HID keyboard using the writer of the given output of
+     * the {@link PassBeamService}, see {@link #write(String)}.
+     *
+     * @param device The device file of the output.
+     * @param str    The string.
+     * @return Returns true if the string was queued.
+     */
+    public static boolean write(String device, String str) {
+        PassBeamService service = PassBeamService.getInstance();
+        if (service == null) {
+            Log.e(TAG, "couldn't write string, service isn't running");
+            return false;
+        }
+
+        DeviceWriter deviceWriter = service.getDeviceWriter(device);
+        if (deviceWriter == null) {
+            Log.e(TAG, String.format("couldn't write string, no output '%s'", device));
+            return false;
+        }
 
-        Context context = PassBeamApplication.getInstance().getContext();
-        Intent intent = new Intent(context, DeviceWriter.class);
-        context.startService(intent);
+        return deviceWriter.submit(str);
     }
 
     /**
-     * Get the converter.
+     * Get the converter of the output.
      *
      * @return Returns the converter.
      */
-    public static Converter getConverter() {
+    public Converter getConverter() {
         return converter;
     }
 
-    @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
-        addIntentQueue(intent);
-        return super.onStartCommand(intent, flags, startId);
+    public HostMonitor getHostMonitor() {
+        return hostMonitor;
     }
 
-    @Override
-    protected void onHandleIntent(Intent intent) {
-        Log.v(TAG, "started keyboard device writer service");
+    public PassBeamConfig.Output getOutput() {
+        return output;
+    }
 
-        suWrite();
-        clearIntentQueue();
+    /**
+     * Replace the settings of the output, e.g. after the pacing changed. The device file of the
+     * output must not change. The keyboard layout isn't loaded, see {@link #getConverter()}.
+     *
+     * @param output The output.
+     */
+    public void setOutput(PassBeamConfig.Output output) {
+        if (!output.getDevice().equals(this.output.getDevice())) {
+            throw new IllegalArgumentException(String.format("device '%s' doesn't match device '%s' of the writer", output.getDevice(), this.output.getDevice()));
+        }
+
+        this.output = output;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
 
-        Log.v(TAG, "stopped keyboard device writer service");
+    public boolean isRunning() {
+        return thread != null;
     }
 }
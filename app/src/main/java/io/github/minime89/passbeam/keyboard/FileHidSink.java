@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * {@link HidSink} which writes to a file without superuser privileges, e.g. a HID keyboard device
+ * file which is writable by the app, a FIFO or a regular file which records the keyboard events.
+ * Regular files are appended to. Every keyboard event is written using a separate write to the
+ * file, like a HID keyboard device file requires.
+ * <p/>
+ * Opening a FIFO blocks until the FIFO is opened for reading.
+ */
+public class FileHidSink implements HidSink {
+    /**
+     * The file.
+     */
+    private final String path;
+
+    private FileOutputStream os;
+
+    /**
+     * Constructor.
+     *
+     * @param path The file.
+     */
+    public FileHidSink(String path) {
+        this.path = path;
+    }
+
+    @Override
+    public synchronized void open() throws IOException {
+        if (os != null) {
+            return;
+        }
+
+        os = new FileOutputStream(path, true);
+    }
+
+    @Override
+    public synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+        if (os == null) {
+            throw new IOException("sink isn't open");
+        }
+
+        if (length % Converter.REPORT_SIZE != 0) {
+            throw new IllegalArgumentException(String.format("length %d isn't a multiple of the report size", length));
+        }
+
+        for (int position = offset; position < offset + length; position += Converter.REPORT_SIZE) {
+            os.write(buffer, position, Converter.REPORT_SIZE);
+        }
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return os != null;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (os == null) {
+            return;
+        }
+
+        FileOutputStream os = this.os;
+        this.os = null;
+        os.close();
+    }
+
+    public String getPath() {
+        return path;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Output for encoded keyboard events. A sink receives buffers of keyboard events, each
+ * {@link Converter#REPORT_SIZE} bytes long, and delivers every keyboard event as single report to
+ * the HID keyboard device.
+ */
+public interface HidSink extends Closeable {
+    /**
+     * Creates the sinks used by a writer. A new sink is created whenever the writer opens a
+     * session, e.g. after the previous sink failed.
+     */
+    interface Factory {
+        /**
+         * Create an unopened sink.
+         *
+         * @return Returns the sink.
+         */
+        HidSink create();
+    }
+
+    /**
+     * Open the sink. Opening an already opened sink has no effect.
+     *
+     * @throws IOException When the sink couldn't be opened.
+     */
+    void open() throws IOException;
+
+    /**
+     * Write keyboard events to the sink.
+     *
+     * @param buffer The buffer containing the keyboard events.
+     * @param offset The offset of the first keyboard event in the buffer.
+     * @param length The number of bytes to write. Must be a multiple of {@link Converter#REPORT_SIZE}.
+     * @throws IOException When the keyboard events couldn't be written.
+     */
+    void write(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Check whether the sink is open.
+     *
+     * @return Returns true if the sink is open.
+     */
+    boolean isOpen();
+
+    /**
+     * Close the sink. Closing an already closed sink has no effect.
+     *
+     * @throws IOException When the sink couldn't be closed properly.
+     */
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Input for the output reports the host sends to the HID keyboard device, e.g. when the state of
+ * the keyboard LEDs changed. Without report IDs, every output report of the keyboard is a single
+ * byte of {@link HostMonitor#OUTPUT_REPORT_SIZE} containing the LED bits.
+ */
+public interface HidSource extends Closeable {
+    /**
+     * Creates the sources used by a {@link HostMonitor}. A new source is created whenever the
+     * monitor starts reading, e.g. after the previous source failed.
+     */
+    interface Factory {
+        /**
+         * Create an unopened source.
+         *
+         * @return Returns the source.
+         */
+        HidSource create();
+    }
+
+    /**
+     * Open the source. Opening an already opened source has no effect.
+     *
+     * @throws IOException When the source couldn't be opened.
+     */
+    void open() throws IOException;
+
+    /**
+     * Read output reports from the source. Blocks until at least one output report was received
+     * or the source was closed.
+     *
+     * @param buffer The buffer for the output reports.
+     * @param offset The offset in the buffer.
+     * @param length The maximum number of bytes to read.
+     * @return Returns the number of bytes read or -1 if the source was closed.
+     * @throws IOException When the output reports couldn't be read.
+     */
+    int read(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Check whether the source is open.
+     *
+     * @return Returns true if the source is open.
+     */
+    boolean isOpen();
+
+    /**
+     * Close the source. A blocked {@link #read(byte[], int, int)} returns. Closing an already
+     * closed source has no effect.
+     *
+     * @throws IOException When the source couldn't be closed properly.
+     */
+    @Override
+    void close() throws IOException;
+}
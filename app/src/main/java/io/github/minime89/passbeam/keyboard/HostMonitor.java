@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Monitor for the output reports the host sends to the HID keyboard device. A monitor thread reads
+ * the output reports from a {@link HidSource} and keeps the state of the keyboard LEDs together
+ * with the number and the time of the received output reports, which signal that the host
+ * enumerated the device and is listening.
+ * <p/>
+ * Hosts usually only send an output report when the state of the keyboard LEDs changed, e.g. when
+ * Caps Lock was pressed on any keyboard of the host. The LED state is unknown until the first
+ * output report was received.
+ * <p/>
+ * If the source fails, e.g. because the device doesn't support output reports, it is opened
+ * again with an exponentially growing delay. After {@link #MAX_FAILURES} failures in a row the
+ * monitor gives up until it is started again, see {@link #isFailed()}.
+ * <p/>
+ * The monitor is used by the {@link DeviceWriter} to adapt the pacing and to correct the Caps Lock
+ * state of the host.
+ */
+public class HostMonitor {
+    private static final String TAG = HostMonitor.class.getSimpleName();
+
+    /**
+     * The size of an output report of the keyboard.
+     */
+    public static final int OUTPUT_REPORT_SIZE = 1;
+
+    /**
+     * The LED bits of an output report.
+     */
+    public static final int LED_NUM_LOCK = 0x01;
+    public static final int LED_CAPS_LOCK = 0x02;
+    public static final int LED_SCROLL_LOCK = 0x04;
+
+    /**
+     * The LED state before the first output report was received.
+     */
+    public static final int LEDS_UNKNOWN = -1;
+
+    /**
+     * The default time to wait before the source is opened again after it failed for the first
+     * time. The delay is doubled after every further failure.
+     */
+    public static final long DEFAULT_RETRY_DELAY = 1000;
+
+    /**
+     * The number of failures in a row after which the monitor gives up.
+     */
+    static final int MAX_FAILURES = 5;
+
+    private final HidSource.Factory sourceFactory;
+    private final long retryDelay;
+
+    /**
+     * The monitor thread.
+     */
+    private Thread thread;
+
+    /**
+     * The source of the monitor thread.
+     */
+    private HidSource source;
+
+    private volatile int leds = LEDS_UNKNOWN;
+    private volatile long reportCount = 0;
+    private volatile long lastReportTime = 0;
+
+    /**
+     * Whether the monitor gave up after the source failed too often.
+     */
+    private volatile boolean failed = false;
+
+    /**
+     * Constructor.
+     *
+     * @param sourceFactory Creates the sources the output reports are read from.
+     */
+    public HostMonitor(HidSource.Factory sourceFactory) {
+        this(sourceFactory, DEFAULT_RETRY_DELAY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param sourceFactory Creates the sources the output reports are read from.
+     * @param retryDelay    The time in milliseconds to wait before the source is opened again
+     *                      after it failed for the first time.
+     */
+    public HostMonitor(HidSource.Factory sourceFactory, long retryDelay) {
+        this.sourceFactory = sourceFactory;
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * Start the monitor thread. The LED state is unknown until the next output report was
+     * received, since the host may have changed.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+
+        Log.v(TAG, "start host monitor");
+
+        leds = LEDS_UNKNOWN;
+        failed = false;
+
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                process();
+            }
+        }, TAG);
+        this.thread = thread;
+        thread.start();
+    }
+
+    /**
+     * Stop the monitor thread. The source is closed, hence a blocked read returns.
+     */
+    public void stop() {
+        HidSource source;
+        synchronized (this) {
+            if (thread == null) {
+                return;
+            }
+
+            Log.v(TAG, "stop host monitor");
+
+            thread.interrupt();
+            thread = null;
+
+            source = this.source;
+            this.source = null;
+        }
+
+        if (source != null) {
+            closeSource(source);
+        }
+    }
+
+    /**
+     * The loop of the monitor thread. Reads output reports until the thread gets interrupted and
+     * opens the source again after it failed, until it failed {@link #MAX_FAILURES} times without
+     * receiving an output report in between.
+     */
+    private void process() {
+        byte[] buffer = new byte[64];
+        int failures = 0;
+
+        while (!Thread.currentThread().isInterrupted()) {
+            HidSource source = sourceFactory.create();
+            long count = reportCount;
+            try {
+                source.open();
+                if (!attach(source)) {
+                    break;
+                }
+
+                int length;
+                while ((length = source.read(buffer, 0, buffer.length)) > 0) {
+                    for (int i = 0; i + OUTPUT_REPORT_SIZE <= length; i += OUTPUT_REPORT_SIZE) {
+                        received(buffer[i] & 0xFF);
+                    }
+                }
+            } catch (IOException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+
+                Log.e(TAG, String.format("couldn't read output reports: %s", e.getMessage()));
+            } finally {
+                detach(source);
+            }
+
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+
+            failures = (reportCount != count) ? 1 : failures + 1;
+            if (failures >= MAX_FAILURES) {
+                Log.e(TAG, String.format("output reports failed %d times, give up host monitoring for this session", failures));
+                failed = true;
+                break;
+            }
+
+            try {
+                Thread.sleep(retryDelay << (failures - 1));
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+
+        Log.v(TAG, "host monitor stopped");
+    }
+
+    /**
+     * Make the opened source available to {@link #stop()}.
+     *
+     * @param source The source.
+     * @return Returns false if the monitor was stopped in the meantime.
+     */
+    private synchronized boolean attach(HidSource source) {
+        if (thread != Thread.currentThread()) {
+            return false;
+        }
+
+        this.source = source;
+        return true;
+    }
+
+    /**
+     * Close the source of the monitor thread, unless it was already closed by {@link #stop()}.
+     *
+     * @param source The source.
+     */
+    private void detach(HidSource source) {
+        synchronized (this) {
+            if (this.source == source) {
+                this.source = null;
+            }
+        }
+
+        closeSource(source);
+    }
+
+    private static void closeSource(HidSource source) {
+        try {
+            source.close();
+        } catch (IOException e) {
+            Log.e(TAG, String.format("couldn't close output report source: %s", e.getMessage()));
+        }
+    }
+
+    /**
+     * Handle a received output report.
+     *
+     * @param report The output report.
+     */
+    private void received(int report) {
+        leds = report;
+        lastReportTime = System.nanoTime();
+        reportCount++;
+
+        Log.v(TAG, String.format("received LED state {numLock=%b, capsLock=%b, scrollLock=%b}", (report & LED_NUM_LOCK) != 0, (report & LED_CAPS_LOCK) != 0, (report & LED_SCROLL_LOCK) != 0));
+    }
+
+    /**
+     * Get the state of the keyboard LEDs.
+     *
+     * @return Returns the LED bits of the last output report or {@link #LEDS_UNKNOWN}.
+     */
+    public int getLeds() {
+        return leds;
+    }
+
+    /**
+     * Check whether Caps Lock is enabled on the host.
+     *
+     * @return Returns true if the last output report had the Caps Lock LED set. Returns false if
+     * the LED state is unknown.
+     */
+    public boolean isCapsLock() {
+        int leds = this.leds;
+        return leds != LEDS_UNKNOWN && (leds & LED_CAPS_LOCK) != 0;
+    }
+
+    /**
+     * Get the number of received output reports. The writer compares the number before and after
+     * writing keyboard events to detect new output reports.
+     *
+     * @return Returns the number of output reports.
+     */
+    public long getReportCount() {
+        return reportCount;
+    }
+
+    /**
+     * Get the time since the last output report was received.
+     *
+     * @param unit The unit of the time.
+     * @return Returns the time or -1 if no output report was received yet.
+     */
+    public long getTimeSinceLastReport(TimeUnit unit) {
+        if (reportCount == 0) {
+            return -1;
+        }
+
+        return unit.convert(System.nanoTime() - lastReportTime, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Check whether the monitor was started and not stopped yet. The monitor stays started after
+     * it gave up, see {@link #isFailed()}.
+     *
+     * @return Returns true if the monitor was started.
+     */
+    public synchronized boolean isRunning() {
+        return thread != null;
+    }
+
+    /**
+     * Check whether the monitor gave up, since the source failed {@link #MAX_FAILURES} times in a
+     * row. The LED state isn't updated anymore until the monitor is started again.
+     *
+     * @return Returns true if the monitor gave up.
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+}
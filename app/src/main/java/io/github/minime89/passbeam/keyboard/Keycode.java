@@ -31,6 +31,14 @@ import java.util.Collections;
 
 @Root(strict = false)
 public class Keycode {
+    /**
+     * The last column of keysyms whose modifiers are known. Keysyms in further columns belong to
+     * other groups or levels (e.g. the fifth and sixth level of de-neo), which can't be reached
+     * with the hardcoded modifiers. They are ignored, since building them without modifiers would
+     * type the symbol of the first column instead.
+     */
+    private static final int MAX_COLUMN = 4;
+
     /**
      *
      */
@@ -130,17 +138,17 @@ public class Keycode {
      * Build the keycode. This will lookup the scancode instance associated with the provided
      * keycode {@link #value} and lookup all keysyms associated with the provided {@link #keysymRefs}.
      *
-     * @param converter The converter used for possible keycode, keysym and scancode lookups.
+     * @param layout The compiled layout used for possible keycode, keysym and scancode lookups.
      * @throws KeycodeBuildException When the keycode couldn't be build.
      */
-    public void build(Converter converter) throws KeycodeBuildException {
+    public void build(CompiledLayout layout) throws KeycodeBuildException {
         valid = false;
         scancode = null;
         symbols = null;
 
-        Scancodes scancodes = converter.getScancodes();
+        Scancodes scancodes = layout.getScancodes();
         if (scancodes == null) {
-            throw new KeycodeBuildException("couldn't get scancodes from convert instance");
+            throw new KeycodeBuildException("couldn't get scancodes from compiled layout");
         }
 
         //resolve scancode
@@ -150,9 +158,9 @@ public class Keycode {
             throw new KeycodeBuildException(String.format("couldn't resolve keycode reference [%s] to a scancode", ref));
         }
 
-        Keysyms keysyms = converter.getKeysyms();
+        Keysyms keysyms = layout.getKeysyms();
         if (keysyms == null) {
-            throw new KeycodeBuildException("couldn't get keysyms from convert instance");
+            throw new KeycodeBuildException("couldn't get keysyms from compiled layout");
         }
 
         //resolve symbols
@@ -160,6 +168,11 @@ public class Keycode {
         int col = 0;
         for (Keysym.Ref keysymRef : keysymRefs) {
             col++;
+            if (col > MAX_COLUMN) {
+                //the modifiers of further columns (e.g. other groups or levels) are unknown
+                break;
+            }
+
             Keysym keysym = keysyms.find(keysymRef);
             if (keysym == null) {
                 Log.v("keysyms", String.format("couldn't resolve keysym reference [%s] to a keysym", keysymRef)); //TODO remove
@@ -29,6 +29,7 @@ import java.util.Collection;
 import java.util.Collections;
 
 import io.github.minime89.passbeam.FileManager;
+import io.github.minime89.passbeam.IntMap;
 
 @Root(strict = false)
 public class Keycodes {
@@ -40,6 +41,11 @@ public class Keycodes {
      */
     private final Collection<Keycode> keycodes;
 
+    /**
+     * Index of {@link #keycodes} by keycode value.
+     */
+    private final IntMap<Keycode> keycodesByValue;
+
     /**
      * Load the keycodes with the specified keycodes ID.
      *
@@ -55,18 +61,23 @@ public class Keycodes {
 
     public Keycodes(@ElementList(name = "keycodes", inline = true, required = true) Collection<Keycode> keycodes) {
         this.keycodes = Collections.unmodifiableCollection(keycodes);
+
+        keycodesByValue = new IntMap<>(keycodes.size());
+        for (Keycode keycode : keycodes) {
+            keycodesByValue.putIfAbsent(keycode.getValue(), keycode);
+        }
     }
 
     /**
-     * Build all keycodes. This will call {@link Keycode#build(Converter)} for every keycode in
+     * Build all keycodes. This will call {@link Keycode#build(CompiledLayout)} for every keycode in
      * {@link #keycodes}. Any failed keycode build attempts will be ignored.
      *
-     * @param converter The converter used for possible keycode, keysym and scancode lookups.
+     * @param layout The compiled layout used for possible keycode, keysym and scancode lookups.
      */
-    public void build(Converter converter) {
+    public void build(CompiledLayout layout) {
         for (Keycode keycode : keycodes) {
             try {
-                keycode.build(converter);
+                keycode.build(layout);
             } catch (Keycode.KeycodeBuildException e) {
                 Log.v(TAG, e.getMessage());
             }
@@ -74,13 +85,11 @@ public class Keycodes {
     }
 
     public Keycode find(Keycode.Ref keycodeRef) {
-        for (Keycode keycode : keycodes) {
-            if (keycode.equals(keycodeRef)) {
-                return keycode;
-            }
+        if (keycodeRef == null) {
+            return null;
         }
 
-        return null;
+        return keycodesByValue.get(keycodeRef.getValue());
     }
 
     public Collection<Symbol> find(char character) {
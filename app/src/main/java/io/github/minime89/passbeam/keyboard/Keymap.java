@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import io.github.minime89.passbeam.IntMap;
+
+/**
+ * Compiled lookup table which maps characters to the modifier byte and scancode of the symbol
+ * selected for producing that character. The table is built once from the loaded
+ * {@link Keycodes} and answers lookups in constant time without allocating.
+ * <p/>
+ * The table is organized as two-level sparse table over the character range: the high byte of a
+ * character selects a page of 256 entries, the low byte selects the entry inside that page. Pages
+ * are only allocated for character ranges which contain at least one mapped character. Each entry
+ * packs the modifier byte into the high byte and the scancode into the low byte. Because scancode
+ * 0 is reserved (no event), an entry with value 0 marks an unmapped character.
+ * <p/>
+ * Characters which can be produced by multiple symbols additionally keep a list of all distinct
+ * entries as candidates, ordered by preference. The first candidate always equals the selected
+ * entry. The candidates are used to choose the symbols of a whole string at once, see
+ * {@link Planner}.
+ */
+public class Keymap {
+    /**
+     * Returned by {@link #get(char)} for characters which can't be produced by the layout.
+     */
+    public static final int NONE = -1;
+
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    /**
+     * The pages of the table. Unused pages are null.
+     */
+    private final short[][] pages = new short[PAGE_SIZE][];
+
+    /**
+     * The maximum number of candidates kept for a character. Further candidates are dropped.
+     */
+    public static final int MAX_CANDIDATES = 8;
+
+    /**
+     * The candidates of characters with more than one distinct entry.
+     */
+    private final IntMap<short[]> candidates = new IntMap<>();
+
+    /**
+     * The number of mapped characters.
+     */
+    private int size = 0;
+
+    private Keymap() {
+
+    }
+
+    /**
+     * Compile the keymap from the given keycodes. For every printable character the symbol with
+     * the least modifier keys will be selected. If multiple symbols need the same number of
+     * modifier keys, the one with the lower modifier value will be selected. If the modifiers are
+     * equal, the first symbol found will be selected. All other symbols of a character are kept
+     * as candidates in the same order.
+     *
+     * @param keycodes The built keycodes.
+     * @return Returns the compiled keymap.
+     */
+    public static Keymap build(Keycodes keycodes) {
+        Keymap keymap = new Keymap();
+        IntMap<List<Integer>> entries = new IntMap<>();
+
+        for (Keycode keycode : keycodes.getKeycodes()) {
+            Collection<Symbol> symbols = keycode.getSymbols();
+            Scancode scancode = keycode.getScancode();
+            if (symbols == null || scancode == null) {
+                continue;
+            }
+
+            int scancodeValue = scancode.getValue() & 0xFF;
+            if (scancodeValue == 0) {
+                continue;
+            }
+
+            for (Symbol symbol : symbols) {
+                Keysym keysym = symbol.getKeysym();
+                if (!keysym.isPrintable()) {
+                    continue;
+                }
+
+                char character = keysym.getUnicode().getCharacter();
+                int modifiers = symbol.getKeystate().getModifiers() & 0xFF;
+
+                List<Integer> characterEntries = entries.get(character);
+                if (characterEntries == null) {
+                    characterEntries = new ArrayList<>(1);
+                    entries.put(character, characterEntries);
+                }
+                Integer entry = (modifiers << 8) | scancodeValue;
+                if (!characterEntries.contains(entry)) {
+                    characterEntries.add(entry);
+                }
+            }
+        }
+
+        for (int character = 0; character <= Character.MAX_VALUE; character++) {
+            List<Integer> characterEntries = entries.get(character);
+            if (characterEntries == null) {
+                continue;
+            }
+
+            //stable sort, hence the first found entry wins among equally preferred entries
+            Collections.sort(characterEntries, PREFERENCE);
+
+            int entry = characterEntries.get(0);
+            keymap.put((char) character, getModifiers(entry), getScancode(entry));
+
+            if (characterEntries.size() > 1) {
+                short[] characterCandidates = new short[Math.min(characterEntries.size(), MAX_CANDIDATES)];
+                for (int i = 0; i < characterCandidates.length; i++) {
+                    characterCandidates[i] = characterEntries.get(i).shortValue();
+                }
+                keymap.candidates.put(character, characterCandidates);
+            }
+        }
+
+        return keymap;
+    }
+
+    /**
+     * Orders entries by the preference of their modifiers, see {@link #isPreferred(int, int)}.
+     */
+    private static final Comparator<Integer> PREFERENCE = new Comparator<Integer>() {
+        @Override
+        public int compare(Integer entry1, Integer entry2) {
+            int modifiers1 = getModifiers(entry1);
+            int modifiers2 = getModifiers(entry2);
+            if (isPreferred(modifiers1, modifiers2)) {
+                return -1;
+            } else if (isPreferred(modifiers2, modifiers1)) {
+                return 1;
+            }
+
+            return 0;
+        }
+    };
+
+    /**
+     * Check whether a symbol with the given modifiers is preferred over a symbol with the selected
+     * modifiers.
+     *
+     * @param modifiers         The modifiers of the candidate symbol.
+     * @param selectedModifiers The modifiers of the currently selected symbol.
+     * @return Returns true if the candidate should replace the selected symbol.
+     */
+    private static boolean isPreferred(int modifiers, int selectedModifiers) {
+        int oneBitCount = Integer.bitCount(modifiers);
+        int selectedOneBitCount = Integer.bitCount(selectedModifiers);
+
+        return (oneBitCount < selectedOneBitCount) || (oneBitCount == selectedOneBitCount && modifiers < selectedModifiers);
+    }
+
+    private void put(char character, int modifiers, int scancode) {
+        short[] page = pages[character >>> PAGE_BITS];
+        if (page == null) {
+            page = new short[PAGE_SIZE];
+            pages[character >>> PAGE_BITS] = page;
+        }
+
+        if (page[character & PAGE_MASK] == 0) {
+            size++;
+        }
+        page[character & PAGE_MASK] = (short) ((modifiers << 8) | scancode);
+    }
+
+    /**
+     * Lookup the entry for a character.
+     *
+     * @param character The character.
+     * @return Returns the packed entry of the character or {@link #NONE} if the character can't
+     * be produced. Use {@link #getModifiers(int)} and {@link #getScancode(int)} to unpack the
+     * entry.
+     */
+    public int get(char character) {
+        short[] page = pages[character >>> PAGE_BITS];
+        if (page == null) {
+            return NONE;
+        }
+
+        int entry = page[character & PAGE_MASK] & 0xFFFF;
+
+        return (entry == 0) ? NONE : entry;
+    }
+
+    /**
+     * Get the number of candidate entries of a character.
+     *
+     * @param character The character.
+     * @return Returns the number of candidates or 0 if the character can't be produced.
+     */
+    public int getCandidateCount(char character) {
+        short[] characterCandidates = candidates.get(character);
+        if (characterCandidates != null) {
+            return characterCandidates.length;
+        }
+
+        return contains(character) ? 1 : 0;
+    }
+
+    /**
+     * Get a candidate entry of a character. The candidate with index 0 is the entry returned by
+     * {@link #get(char)}.
+     *
+     * @param character The character.
+     * @param index     The index of the candidate.
+     * @return Returns the packed entry of the candidate.
+     */
+    public int getCandidate(char character, int index) {
+        short[] characterCandidates = candidates.get(character);
+        if (characterCandidates != null) {
+            return characterCandidates[index] & 0xFFFF;
+        }
+
+        if (index != 0) {
+            throw new IndexOutOfBoundsException(String.format("character '%c' has no candidate %d", character, index));
+        }
+
+        return get(character);
+    }
+
+    /**
+     * Check whether the character can be produced.
+     *
+     * @param character The character.
+     * @return Returns true if the character is mapped.
+     */
+    public boolean contains(char character) {
+        return get(character) != NONE;
+    }
+
+    /**
+     * Get the modifier byte of a packed entry.
+     *
+     * @param entry The entry returned by {@link #get(char)}.
+     * @return Returns the modifier byte.
+     */
+    public static int getModifiers(int entry) {
+        return (entry >>> 8) & 0xFF;
+    }
+
+    /**
+     * Get the scancode of a packed entry.
+     *
+     * @param entry The entry returned by {@link #get(char)}.
+     * @return Returns the scancode.
+     */
+    public static int getScancode(int entry) {
+        return entry & 0xFF;
+    }
+
+    /**
+     * Get the number of mapped characters.
+     *
+     * @return Returns the number of mapped characters.
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -119,10 +119,10 @@ public class Keysym {
     /**
      * Build the keysym.
      *
-     * @param converter The converter used for possible keycode, keysym and scancode lookups.
+     * @param layout The compiled layout used for possible keycode, keysym and scancode lookups.
      * @throws KeysymBuildException When the keysym couldn't be build.
      */
-    public void build(Converter converter) throws KeysymBuildException {
+    public void build(CompiledLayout layout) throws KeysymBuildException {
         //nothing to do
 
         valid = true;
@@ -28,6 +28,7 @@ import java.util.Collection;
 import java.util.Collections;
 
 import io.github.minime89.passbeam.FileManager;
+import io.github.minime89.passbeam.IntMap;
 
 @Root(strict = false)
 public class Keysyms {
@@ -39,11 +40,17 @@ public class Keysyms {
      */
     private final Collection<Keysym> keysyms;
 
+    /**
+     * Index of {@link #keysyms} by keysym value.
+     */
+    private final IntMap<Keysym> keysymsByValue;
+
     /**
      * Load the keysyms with the specified keysyms ID.
      *
      * @param keysymsId The keysyms ID.
-     * @return Returns loaded keysyms.
+     * @return Returns loaded keysyms. The keysyms are cached and shared between all loaded
+     * layouts.
      * @throws FileManager.FileManagerException When keysyms couldn't be loaded.
      */
     public static Keysyms load(String keysymsId) throws FileManager.FileManagerException {
@@ -52,20 +59,25 @@ public class Keysyms {
         return fileManager.loadKeysyms(keysymsId);
     }
 
-    private Keysyms(@ElementList(name = "keysyms", inline = true, required = true) Collection<Keysym> keysyms) {
+    Keysyms(@ElementList(name = "keysyms", inline = true, required = true) Collection<Keysym> keysyms) {
         this.keysyms = Collections.unmodifiableCollection(keysyms);
+
+        keysymsByValue = new IntMap<>(keysyms.size());
+        for (Keysym keysym : keysyms) {
+            keysymsByValue.putIfAbsent(keysym.getValue(), keysym);
+        }
     }
 
     /**
-     * Build all keysyms. This will call {@link Keysym#build(Converter)} for every keysym in
+     * Build all keysyms. This will call {@link Keysym#build(CompiledLayout)} for every keysym in
      * {@link #keysyms}. Any failed keysym build attempts will be ignored.
      *
-     * @param converter The converter used for possible keycode, keysym and scancode lookups.
+     * @param layout The compiled layout used for possible keycode, keysym and scancode lookups.
      */
-    public void build(Converter converter) {
+    public void build(CompiledLayout layout) {
         for (Keysym keysym : keysyms) {
             try {
-                keysym.build(converter);
+                keysym.build(layout);
             } catch (Keysym.KeysymBuildException e) {
                 Log.v(TAG, e.getMessage());
             }
@@ -73,13 +85,11 @@ public class Keysyms {
     }
 
     public Keysym find(Keysym.Ref keysymRef) {
-        for (Keysym keysym : keysyms) {
-            if (keysym.equals(keysymRef)) {
-                return keysym;
-            }
+        if (keysymRef == null) {
+            return null;
         }
 
-        return null;
+        return keysymsByValue.get(keysymRef.getValue());
     }
 
     @ElementList(name = "keysyms", inline = true, required = true)
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link HidSink} which records the keyboard events in memory, e.g. to measure the throughput of a
+ * writer or to verify the written keyboard events using a {@link Decoder}.
+ */
+public class MemoryHidSink implements HidSink {
+    private final ByteArrayOutputStream reports = new ByteArrayOutputStream();
+    private boolean open = false;
+
+    @Override
+    public synchronized void open() throws IOException {
+        open = true;
+    }
+
+    @Override
+    public synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+        if (!open) {
+            throw new IOException("sink isn't open");
+        }
+
+        if (length % Converter.REPORT_SIZE != 0) {
+            throw new IllegalArgumentException(String.format("length %d isn't a multiple of the report size", length));
+        }
+
+        reports.write(buffer, offset, length);
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        open = false;
+    }
+
+    /**
+     * Get a copy of the recorded keyboard events.
+     *
+     * @return Returns the keyboard events, ready to be read.
+     */
+    public synchronized ByteBuffer getReports() {
+        return ByteBuffer.wrap(reports.toByteArray());
+    }
+
+    /**
+     * Get the number of recorded keyboard events.
+     *
+     * @return Returns the number of keyboard events.
+     */
+    public synchronized int getReportCount() {
+        return reports.size() / Converter.REPORT_SIZE;
+    }
+
+    /**
+     * Discard the recorded keyboard events.
+     */
+    public synchronized void clear() {
+        reports.reset();
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+import java.io.IOException;
+
+/**
+ * {@link HidSource} which receives the output reports from memory, e.g. to simulate the keyboard
+ * LEDs of a host.
+ */
+public class MemoryHidSource implements HidSource {
+    private final byte[] reports = new byte[256];
+    private int start = 0;
+    private int count = 0;
+    private boolean open = false;
+
+    @Override
+    public synchronized void open() throws IOException {
+        open = true;
+    }
+
+    /**
+     * Add an output report, which is returned by the next read.
+     *
+     * @param report The output report.
+     * @throws IOException When the output reports which weren't read yet exceed the capacity.
+     */
+    public synchronized void put(int report) throws IOException {
+        if (count == reports.length) {
+            throw new IOException("source is full");
+        }
+
+        reports[(start + count) % reports.length] = (byte) report;
+        count++;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+        try {
+            while (open && count == 0) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("read was interrupted");
+        }
+
+        if (!open) {
+            return -1;
+        }
+
+        int read = Math.min(length, count);
+        for (int i = 0; i < read; i++) {
+            buffer[offset + i] = reports[start];
+            start = (start + 1) % reports.length;
+        }
+        count -= read;
+
+        return read;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        open = false;
+        notifyAll();
+    }
+}
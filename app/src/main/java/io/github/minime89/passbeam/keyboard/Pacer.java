@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Scheduler which paces the keyboard events written to the device. Every keyboard event is
+ * timestamped using {@link System#nanoTime()}. The writer calls {@link #await()} before and
+ * {@link #written()} after writing a keyboard event:
+ * <pre>
+ * pacer.start();
+ * for (...) {
+ *     pacer.await();
+ *     sink.write(...);
+ *     pacer.written();
+ * }
+ * </pre>
+ * The achieved rate can be compared to the target rate using {@link #getAchievedRate()} and
+ * {@link #getTargetRate()}.
+ * <p/>
+ * In {@link Mode#ADAPTIVE} the writer reports hiccups of the host using {@link #backOff()}. The
+ * adapted interval is kept by {@link #start()}, hence a pacer should be reused for the keyboard
+ * events written to the same host.
+ */
+public class Pacer {
+    /**
+     * The time before a deadline which is spent spinning instead of parking the thread, because
+     * parking is too imprecise for short waits.
+     */
+    private static final long SPIN_THRESHOLD = 200000;
+
+    /**
+     * The default number of keyboard events in a burst.
+     */
+    public static final int DEFAULT_BURST_SIZE = 4;
+
+    /**
+     * The fraction of the interval by which the interval is reduced after every keyboard event in
+     * {@link Mode#ADAPTIVE}.
+     */
+    private static final int ADAPTIVE_SPEED_UP = 64;
+
+    /**
+     * The minimum interval in {@link Mode#ADAPTIVE}, as divisor of the configured interval.
+     */
+    private static final int ADAPTIVE_MIN_DIVISOR = 2;
+
+    /**
+     * The maximum interval in {@link Mode#ADAPTIVE}, as multiple of the configured interval.
+     */
+    private static final int ADAPTIVE_MAX_FACTOR = 4;
+
+    /**
+     * The pacing modes.
+     */
+    public enum Mode {
+        /**
+         * Keyboard events are written at a fixed rate. The interval is measured from the start of
+         * one write to the start of the next one, hence the time a write takes is compensated.
+         */
+        FIXED_RATE,
+        /**
+         * The interval is waited after every write. The effective rate is lower than the target
+         * rate by the time a write takes.
+         */
+        MIN_GAP,
+        /**
+         * Keyboard events are written in bursts without waiting in between. After a burst is
+         * written, the next burst is delayed so that the average rate matches the target rate.
+         */
+        BURST,
+        /**
+         * Keyboard events are written at a fixed rate which adapts to the host. The interval is
+         * reduced a little after every keyboard event, down to half the configured interval, while
+         * the host keeps up. Every hiccup of the host reported by {@link #backOff()} doubles the
+         * interval, up to four times the configured interval.
+         */
+        ADAPTIVE
+    }
+
+    private final Mode mode;
+    private final long interval;
+    private final int burstSize;
+
+    /**
+     * The current interval. Only differs from the configured interval in {@link Mode#ADAPTIVE}.
+     */
+    private long currentInterval;
+
+    /**
+     * The time at which the next keyboard event may be written.
+     */
+    private long next;
+
+    /**
+     * The time at which the current burst started.
+     */
+    private long burstStart;
+
+    /**
+     * The number of keyboard events written since {@link #start()}.
+     */
+    private long count;
+
+    /**
+     * The time at which the first keyboard event was written.
+     */
+    private long first;
+
+    /**
+     * The time at which the last keyboard event was written.
+     */
+    private long last;
+
+    /**
+     * Constructor.
+     *
+     * @param mode     The pacing mode.
+     * @param interval The interval between keyboard events in nanoseconds.
+     */
+    public Pacer(Mode mode, long interval) {
+        this(mode, interval, DEFAULT_BURST_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param mode      The pacing mode.
+     * @param interval  The interval between keyboard events in nanoseconds.
+     * @param burstSize The number of keyboard events in a burst. Only used in {@link Mode#BURST}.
+     */
+    public Pacer(Mode mode, long interval, int burstSize) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("interval must not be negative");
+        }
+        if (burstSize < 1) {
+            throw new IllegalArgumentException("burst size must be at least 1");
+        }
+
+        this.mode = mode;
+        this.interval = interval;
+        this.burstSize = burstSize;
+        this.currentInterval = interval;
+
+        start();
+    }
+
+    /**
+     * Reset the schedule and the statistics. The next keyboard event may be written immediately.
+     * The adapted interval of {@link Mode#ADAPTIVE} is kept.
+     */
+    public void start() {
+        next = System.nanoTime();
+        burstStart = next;
+        count = 0;
+        first = 0;
+        last = 0;
+    }
+
+    /**
+     * Block until the next keyboard event may be written.
+     *
+     * @throws InterruptedException When the thread was interrupted while waiting.
+     */
+    public void await() throws InterruptedException {
+        long remaining = next - System.nanoTime();
+        while (remaining > 0) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            if (remaining > SPIN_THRESHOLD) {
+                LockSupport.parkNanos(remaining - SPIN_THRESHOLD);
+            } else {
+                Thread.yield();
+            }
+
+            remaining = next - System.nanoTime();
+        }
+    }
+
+    /**
+     * Record that a keyboard event was written and schedule the next keyboard event.
+     */
+    public void written() {
+        long now = System.nanoTime();
+
+        if (count == 0) {
+            first = now;
+        }
+        last = now;
+        count++;
+
+        switch (mode) {
+            case FIXED_RATE:
+                next += interval;
+                break;
+            case MIN_GAP:
+                next = now + interval;
+                break;
+            case BURST:
+                if (count % burstSize == 0) {
+                    burstStart += burstSize * interval;
+                    next = burstStart;
+                } else {
+                    next = now;
+                }
+                break;
+            case ADAPTIVE:
+                next += currentInterval;
+                currentInterval = Math.max(interval / ADAPTIVE_MIN_DIVISOR, currentInterval - currentInterval / ADAPTIVE_SPEED_UP);
+                break;
+        }
+
+        //don't try to catch up by writing keyboard events faster after falling behind
+        if (next < now) {
+            next = now;
+            burstStart = Math.max(burstStart, now);
+        }
+    }
+
+    /**
+     * Slow down after a hiccup of the host, e.g. when a write blocked longer than the interval or
+     * the host sent an unexpected output report. Doubles the current interval and delays the next
+     * keyboard event accordingly. Only has an effect in {@link Mode#ADAPTIVE}.
+     */
+    public void backOff() {
+        if (mode != Mode.ADAPTIVE) {
+            return;
+        }
+
+        currentInterval = Math.min(interval * ADAPTIVE_MAX_FACTOR, currentInterval * 2);
+        next = Math.max(next, System.nanoTime() + currentInterval);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    public int getBurstSize() {
+        return burstSize;
+    }
+
+    /**
+     * Get the interval currently used between keyboard events.
+     *
+     * @return Returns the interval in nanoseconds.
+     */
+    public long getCurrentInterval() {
+        return currentInterval;
+    }
+
+    /**
+     * Get the number of keyboard events written since {@link #start()}.
+     *
+     * @return Returns the number of keyboard events.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Get the configured rate.
+     *
+     * @return Returns the target rate in keyboard events per second.
+     */
+    public double getTargetRate() {
+        return (interval > 0) ? 1e9 / interval : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Get the rate achieved since {@link #start()}, measured between the first and the last
+     * written keyboard event.
+     *
+     * @return Returns the achieved rate in keyboard events per second or 0 if less than two
+     * keyboard events were written.
+     */
+    public double getAchievedRate() {
+        if (count < 2 || last == first) {
+            return 0;
+        }
+
+        return (count - 1) * 1e9 / (last - first);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+/**
+ * Chooses the symbols used for producing a whole string. Characters which can be produced by
+ * multiple symbols (see {@link Keymap#getCandidateCount(char)}) are assigned the candidate which
+ * fits best to its neighbours, instead of selecting the preferred symbol of every character on
+ * its own.
+ * <p/>
+ * The costs of a string are the number of keyboard events needed for typing it and, secondly, the
+ * number of modifier keys which are pressed or released. Two consecutive characters which use the
+ * same modifiers and different keys need a single keyboard event, since the release of the first
+ * character is merged with the press of the second character. All other character pairs need an
+ * additional keyboard event releasing all keys, which releases the modifiers of the first and
+ * presses the modifiers of the second character. The plan with the lowest costs is found by
+ * dynamic programming over the candidates of every character, in O(n * {@link Keymap#MAX_CANDIDATES}^2)
+ * time. Among plans with equal costs, the more preferred candidates are chosen.
+ */
+public class Planner {
+    /**
+     * The costs of a keyboard event. Modifier changes are counted in the lower bits, hence they
+     * only decide between plans with the same number of keyboard events.
+     */
+    private static final long REPORT = 1L << 32;
+
+    private Planner() {
+
+    }
+
+    /**
+     * Plan the entries used for producing the string.
+     *
+     * @param keymap The keymap.
+     * @param string The string.
+     * @param plan   The array which receives the chosen keymap entry of every character. Must be
+     *               at least as long as the string.
+     * @return Returns -1 if the plan was created or the index of the first character which can't
+     * be produced.
+     */
+    public static int plan(Keymap keymap, CharSequence string, int[] plan) {
+        int length = string.length();
+        if (length == 0) {
+            return -1;
+        }
+
+        int width = Keymap.MAX_CANDIDATES;
+        long[] costs = new long[width];
+        long[] nextCosts = new long[width];
+        byte[] choices = new byte[length * width];
+
+        //press the first character
+        char character = string.charAt(0);
+        int count = keymap.getCandidateCount(character);
+        if (count == 0) {
+            return 0;
+        }
+        for (int j = 0; j < count; j++) {
+            costs[j] = REPORT + modifierCount(keymap.getCandidate(character, j));
+        }
+
+        for (int i = 1; i < length; i++) {
+            char previousCharacter = character;
+            int previousCount = count;
+
+            character = string.charAt(i);
+            count = keymap.getCandidateCount(character);
+            if (count == 0) {
+                return i;
+            }
+
+            for (int j = 0; j < count; j++) {
+                int entry = keymap.getCandidate(character, j);
+
+                long bestCost = Long.MAX_VALUE;
+                int bestChoice = 0;
+                for (int k = 0; k < previousCount; k++) {
+                    long cost = costs[k] + transition(keymap.getCandidate(previousCharacter, k), entry);
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        bestChoice = k;
+                    }
+                }
+
+                nextCosts[j] = bestCost;
+                choices[i * width + j] = (byte) bestChoice;
+            }
+
+            long[] tmp = costs;
+            costs = nextCosts;
+            nextCosts = tmp;
+        }
+
+        //release the last character
+        long bestCost = Long.MAX_VALUE;
+        int choice = 0;
+        for (int j = 0; j < count; j++) {
+            long cost = costs[j] + REPORT + modifierCount(keymap.getCandidate(character, j));
+            if (cost < bestCost) {
+                bestCost = cost;
+                choice = j;
+            }
+        }
+
+        for (int i = length - 1; i >= 0; i--) {
+            plan[i] = keymap.getCandidate(string.charAt(i), choice);
+            choice = choices[i * width + choice];
+        }
+
+        return -1;
+    }
+
+    /**
+     * Get the costs of pressing a character after another character.
+     *
+     * @param previous The entry of the pressed character.
+     * @param entry    The entry of the next character.
+     * @return Returns the costs.
+     */
+    private static long transition(int previous, int entry) {
+        if (Keymap.getModifiers(previous) == Keymap.getModifiers(entry) && Keymap.getScancode(previous) != Keymap.getScancode(entry)) {
+            return REPORT;
+        }
+
+        return 2 * REPORT + modifierCount(previous) + modifierCount(entry);
+    }
+
+    private static int modifierCount(int entry) {
+        return Integer.bitCount(Keymap.getModifiers(entry));
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+
+import io.github.minime89.passbeam.Utils;
+
+/**
+ * {@link HidSink} which writes to a HID keyboard device file using superuser privileges. A single
+ * superuser process is started when the sink is opened and kept alive until the sink is closed.
+ * <p/>
+ * After starting the superuser shell a handshake verifies that the shell runs as root and that
+ * the device file is writable. The shell is then replaced by <code>dd</code>, which keeps the
+ * device file open and copies the raw keyboard events from its standard input to the device. The
+ * framing is fixed: every frame is one keyboard event of {@link Converter#REPORT_SIZE} bytes, which
+ * <code>dd</code> reads and writes as one block, so every keyboard event results in exactly one
+ * write to the device file.
+ */
+public class RootHidSink implements HidSink {
+    private static final String TAG = RootHidSink.class.getSimpleName();
+
+    /**
+     * The default HID keyboard device file.
+     */
+    public static final String DEFAULT_DEVICE = "/dev/hidg0";
+
+    /**
+     * The device file.
+     */
+    private final String device;
+
+    /**
+     * The superuser process.
+     */
+    private Process process;
+
+    /**
+     * The standard input of the superuser process.
+     */
+    private OutputStream os;
+
+    /**
+     * Constructor.
+     */
+    public RootHidSink() {
+        this(DEFAULT_DEVICE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param device The device file.
+     */
+    public RootHidSink(String device) {
+        this.device = device;
+    }
+
+    @Override
+    public synchronized void open() throws IOException {
+        if (process != null) {
+            return;
+        }
+
+        Log.v(TAG, String.format("start superuser session for device '%s'", device));
+
+        Process process = Runtime.getRuntime().exec("su");
+        try {
+            OutputStream os = process.getOutputStream();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+
+            //handshake
+            os.write("id -u\n".getBytes("UTF-8"));
+            os.flush();
+            String uid = reader.readLine();
+            if (uid == null || !uid.trim().equals("0")) {
+                throw new IOException(String.format("superuser shell doesn't run as root (uid: %s)", uid));
+            }
+
+            os.write(String.format("test -w %s && echo ok || echo fail\n", Utils.shellQuote(device)).getBytes("UTF-8"));
+            os.flush();
+            String result = reader.readLine();
+            if (result == null || !result.trim().equals("ok")) {
+                throw new IOException(String.format("device '%s' isn't writable", device));
+            }
+
+            //replace shell with the binary writer
+            os.write(String.format("exec dd of=%s bs=%d 2>/dev/null\n", Utils.shellQuote(device), Converter.REPORT_SIZE).getBytes("UTF-8"));
+            os.flush();
+
+            this.process = process;
+            this.os = os;
+        } catch (IOException e) {
+            process.destroy();
+
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+        if (process == null) {
+            throw new IOException("sink isn't open");
+        }
+
+        if (length % Converter.REPORT_SIZE != 0) {
+            throw new IllegalArgumentException(String.format("length %d isn't a multiple of the report size", length));
+        }
+
+        os.write(buffer, offset, length);
+        os.flush();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return process != null;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (process == null) {
+            return;
+        }
+
+        Log.v(TAG, String.format("stop superuser session for device '%s'", device));
+
+        Process process = this.process;
+        this.process = null;
+        this.os = null;
+
+        try {
+            process.getOutputStream().close();
+
+            int processReturnCode = process.waitFor();
+            if (processReturnCode != 0) {
+                throw new IOException(String.format("superuser process exited with code %d", processReturnCode));
+            }
+        } catch (InterruptedException e) {
+            process.destroy();
+
+            throw new IOException("superuser process was interrupted");
+        }
+    }
+
+    public String getDevice() {
+        return device;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import io.github.minime89.passbeam.Utils;
+
+/**
+ * {@link HidSource} which reads the output reports from a HID keyboard device file using superuser
+ * privileges. Like the {@link RootHidSink}, a handshake verifies that the superuser shell runs as
+ * root and that the device file is readable. The shell then prints its process ID and is replaced
+ * by <code>dd</code>, which copies every output report to its standard output as soon as it was
+ * received.
+ * <p/>
+ * A <code>dd</code> waiting for the next output report doesn't notice that its standard input was
+ * closed, hence it is killed using its process ID when the source is closed.
+ */
+public class RootHidSource implements HidSource {
+    private static final String TAG = RootHidSource.class.getSimpleName();
+
+    /**
+     * The block size of <code>dd</code>. The HID gadget returns a single output report per read.
+     */
+    private static final int BLOCK_SIZE = 64;
+
+    /**
+     * The device file.
+     */
+    private final String device;
+
+    /**
+     * The superuser process.
+     */
+    private Process process;
+
+    /**
+     * The process ID of <code>dd</code>.
+     */
+    private int pid;
+
+    /**
+     * The standard output of the superuser process.
+     */
+    private volatile InputStream is;
+
+    /**
+     * Constructor.
+     *
+     * @param device The device file.
+     */
+    public RootHidSource(String device) {
+        this.device = device;
+    }
+
+    @Override
+    public synchronized void open() throws IOException {
+        if (process != null) {
+            return;
+        }
+
+        Log.v(TAG, String.format("start superuser reader for device '%s'", device));
+
+        Process process = Runtime.getRuntime().exec("su");
+        try {
+            OutputStream os = process.getOutputStream();
+            InputStream is = process.getInputStream();
+
+            //handshake
+            os.write("id -u\n".getBytes("UTF-8"));
+            os.flush();
+            String uid = readLine(is);
+            if (uid == null || !uid.trim().equals("0")) {
+                throw new IOException(String.format("superuser shell doesn't run as root (uid: %s)", uid));
+            }
+
+            os.write(String.format("test -r %s && echo $$ || echo fail\n", Utils.shellQuote(device)).getBytes("UTF-8"));
+            os.flush();
+            String result = readLine(is);
+            int pid;
+            try {
+                pid = Integer.parseInt((result != null) ? result.trim() : "");
+            } catch (NumberFormatException e) {
+                throw new IOException(String.format("device '%s' isn't readable", device));
+            }
+
+            //replace shell with the binary reader, which keeps the process ID
+            os.write(String.format("exec dd if=%s bs=%d 2>/dev/null\n", Utils.shellQuote(device), BLOCK_SIZE).getBytes("UTF-8"));
+            os.flush();
+
+            this.process = process;
+            this.pid = pid;
+            this.is = is;
+        } catch (IOException e) {
+            process.destroy();
+
+            throw e;
+        }
+    }
+
+    /**
+     * Read a line from the standard output of the superuser process without reading ahead, since
+     * the output reports follow the handshake.
+     *
+     * @param is The standard output.
+     * @return Returns the line or null if the process exited.
+     * @throws IOException When the line couldn't be read.
+     */
+    private static String readLine(InputStream is) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = is.read()) != '\n') {
+            if (c == -1) {
+                return null;
+            }
+            line.write(c);
+        }
+
+        return line.toString("UTF-8");
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        InputStream is = this.is;
+        if (is == null) {
+            throw new IOException("source isn't open");
+        }
+
+        return is.read(buffer, offset, length);
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return process != null;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (process == null) {
+            return;
+        }
+
+        Log.v(TAG, String.format("stop superuser reader for device '%s'", device));
+
+        Process process = this.process;
+        this.process = null;
+        this.is = null;
+
+        try {
+            Process killProcess = Runtime.getRuntime().exec(new String[]{"su", "-c", String.format("kill %d", pid)});
+            int killReturnCode = killProcess.waitFor();
+            if (killReturnCode != 0) {
+                throw new IOException(String.format("couldn't kill reader process %d (exit code %d)", pid, killReturnCode));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new IOException("killing the reader process was interrupted");
+        } finally {
+            process.destroy();
+        }
+    }
+
+    public String getDevice() {
+        return device;
+    }
+}
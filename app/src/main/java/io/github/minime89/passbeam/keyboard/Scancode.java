@@ -125,16 +125,16 @@ public class Scancode {
      * Build the scancode. This will lookup the keycode instance associated with the provided
      * provided {@link #keycodeRef}.
      *
-     * @param converter The converter used for possible keycode, keysym and scancode lookups.
+     * @param layout The compiled layout used for possible keycode, keysym and scancode lookups.
      * @throws ScancodeBuildException When the scancode couldn't be build.
      */
-    public void build(Converter converter) throws ScancodeBuildException {
+    public void build(CompiledLayout layout) throws ScancodeBuildException {
         valid = false;
         keycode = null;
 
-        Keycodes keycodes = converter.getKeycodes();
+        Keycodes keycodes = layout.getKeycodes();
         if (keycodes == null) {
-            throw new ScancodeBuildException("couldn't get keycodes from convert instance");
+            throw new ScancodeBuildException("couldn't get keycodes from compiled layout");
         }
 
         //resolve keycode
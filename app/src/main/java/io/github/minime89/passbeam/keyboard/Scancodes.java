@@ -24,10 +24,12 @@ import org.json.JSONObject;
 import org.simpleframework.xml.ElementList;
 import org.simpleframework.xml.Root;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 
 import io.github.minime89.passbeam.FileManager;
+import io.github.minime89.passbeam.IntMap;
 
 @Root(strict = false)
 public class Scancodes {
@@ -36,33 +38,69 @@ public class Scancodes {
 
     private final Collection<Scancode> scancodes;
 
+    /**
+     * Index of {@link #scancodes} by scancode value.
+     */
+    private final IntMap<Scancode> scancodesByValue;
+
+    /**
+     * Index of {@link #scancodes} by the value of the referenced keycode.
+     */
+    private final IntMap<Scancode> scancodesByKeycode;
+
     /**
      * Load the scancodes with the specified scancodes ID.
      *
      * @param scancodesId The scancodes ID.
-     * @return Returns loaded scancodes.
+     * @return Returns loaded scancodes. The scancodes are a private copy of the cached scancodes
+     * table, because building the scancodes resolves them against the keycodes of a layout.
      * @throws FileManager.FileManagerException When scancodes couldn't be loaded.
      */
     public static Scancodes load(String scancodesId) throws FileManager.FileManagerException {
         FileManager fileManager = new FileManager();
 
-        return fileManager.loadScancodes(scancodesId);
+        return fileManager.loadScancodes(scancodesId).copy();
     }
 
-    private Scancodes(@ElementList(name = "scancodes", inline = true, required = true) Collection<Scancode> scancodes) {
+    Scancodes(@ElementList(name = "scancodes", inline = true, required = true) Collection<Scancode> scancodes) {
         this.scancodes = Collections.unmodifiableCollection(scancodes);
+
+        scancodesByValue = new IntMap<>(scancodes.size());
+        scancodesByKeycode = new IntMap<>(scancodes.size());
+        for (Scancode scancode : scancodes) {
+            scancodesByValue.putIfAbsent(scancode.getValue(), scancode);
+
+            Keycode.Ref keycodeRef = scancode.getKeycodeRef();
+            if (keycodeRef != null) {
+                scancodesByKeycode.putIfAbsent(keycodeRef.getValue(), scancode);
+            }
+        }
     }
 
     /**
-     * Build all scancodes. This will call {@link Scancode#build(Converter)} for every scancode in
+     * Create an unbuilt copy of the scancodes.
+     *
+     * @return Returns the copy.
+     */
+    public Scancodes copy() {
+        Collection<Scancode> copies = new ArrayList<>(scancodes.size());
+        for (Scancode scancode : scancodes) {
+            copies.add(new Scancode(scancode.getValue(), scancode.getName(), scancode.getKeycodeRef()));
+        }
+
+        return new Scancodes(copies);
+    }
+
+    /**
+     * Build all scancodes. This will call {@link Scancode#build(CompiledLayout)} for every scancode in
      * {@link #scancodes}. Any failed scancode build attempts will be ignored.
      *
-     * @param converter The converter used for possible keycode, keysym and scancode lookups.
+     * @param layout The compiled layout used for possible keycode, keysym and scancode lookups.
      */
-    public void build(Converter converter) {
+    public void build(CompiledLayout layout) {
         for (Scancode scancode : scancodes) {
             try {
-                scancode.build(converter);
+                scancode.build(layout);
             } catch (Scancode.ScancodeBuildException e) {
                 Log.v(TAG, e.getMessage());
             }
@@ -70,23 +108,19 @@ public class Scancodes {
     }
 
     public Scancode find(Scancode.Ref scancodeRef) {
-        for (Scancode scancode : scancodes) {
-            if (scancode.equals(scancodeRef)) {
-                return scancode;
-            }
+        if (scancodeRef == null) {
+            return null;
         }
 
-        return null;
+        return scancodesByValue.get(scancodeRef.getValue());
     }
 
     public Scancode find(Keycode.Ref keycodeRef) {
-        for (Scancode scancode : scancodes) {
-            if (scancode.getKeycodeRef() != null && scancode.getKeycodeRef().equals(keycodeRef)) {
-                return scancode;
-            }
+        if (keycodeRef == null) {
+            return null;
         }
 
-        return null;
+        return scancodesByKeycode.get(keycodeRef.getValue());
     }
 
     @ElementList(name = "scancodes", inline = true, required = true)
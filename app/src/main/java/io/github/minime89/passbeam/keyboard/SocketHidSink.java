@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * {@link HidSink} which sends the keyboard events to a virtual keyboard over TCP, using the
+ * protocol of <code>tools/virtual-keyboard</code>: every keyboard event of
+ * {@link Converter#REPORT_SIZE} bytes is answered with the UTF-8 encoded text it produced, or with
+ * a single null byte if it didn't produce any text. The sink waits for the answer of every
+ * keyboard event before sending the next one. The produced text is collected and can be taken
+ * using {@link #takeOutput()}.
+ * <p/>
+ * The answers aren't framed, hence an answer is read until it ends with a complete UTF-8 character
+ * and no more bytes are available, since a single read may return only a part of it.
+ */
+public class SocketHidSink implements HidSink {
+    /**
+     * The default port of the virtual keyboard.
+     */
+    public static final int DEFAULT_PORT = 4242;
+
+    /**
+     * The time to wait for a connection or an answer in milliseconds.
+     */
+    private static final int TIMEOUT = 5000;
+
+    private final String host;
+    private final int port;
+
+    private Socket socket;
+    private InputStream is;
+    private OutputStream os;
+
+    /**
+     * The buffer for answers.
+     */
+    private final byte[] answer = new byte[1024];
+
+    /**
+     * The text produced since the output was taken the last time.
+     */
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    /**
+     * Constructor.
+     *
+     * @param host The host of the virtual keyboard.
+     * @param port The port of the virtual keyboard.
+     */
+    public SocketHidSink(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    public synchronized void open() throws IOException {
+        if (socket != null) {
+            return;
+        }
+
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), TIMEOUT);
+            socket.setSoTimeout(TIMEOUT);
+            socket.setTcpNoDelay(true);
+
+            this.is = socket.getInputStream();
+            this.os = socket.getOutputStream();
+            this.socket = socket;
+        } catch (IOException e) {
+            socket.close();
+
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+        if (socket == null) {
+            throw new IOException("sink isn't open");
+        }
+
+        if (length % Converter.REPORT_SIZE != 0) {
+            throw new IllegalArgumentException(String.format("length %d isn't a multiple of the report size", length));
+        }
+
+        for (int position = offset; position < offset + length; position += Converter.REPORT_SIZE) {
+            os.write(buffer, position, Converter.REPORT_SIZE);
+
+            int count = readAnswer();
+            if (count != 1 || answer[0] != 0) {
+                output.write(answer, 0, count);
+            }
+        }
+    }
+
+    /**
+     * Read the answer to a keyboard event into the answer buffer.
+     *
+     * @return Returns the length of the answer.
+     * @throws IOException When the answer couldn't be read.
+     */
+    private int readAnswer() throws IOException {
+        int count = 0;
+        do {
+            if (count == answer.length) {
+                throw new IOException("answer of the virtual keyboard is too long");
+            }
+
+            int read = is.read(answer, count, answer.length - count);
+            if (read < 0) {
+                throw new IOException("virtual keyboard closed the connection");
+            }
+            count += read;
+        } while (!isComplete(answer, count) || is.available() > 0);
+
+        return count;
+    }
+
+    /**
+     * Check whether the given bytes end with a complete UTF-8 character.
+     *
+     * @param bytes The bytes.
+     * @param count The number of bytes.
+     * @return Returns true if the last character is complete.
+     */
+    private static boolean isComplete(byte[] bytes, int count) {
+        for (int i = count - 1; i >= 0 && i >= count - 4; i--) {
+            int b = bytes[i] & 0xFF;
+            if ((b & 0xC0) == 0x80) {
+                //continuation byte, the lead byte comes before
+                continue;
+            }
+
+            int length;
+            if ((b & 0x80) == 0) {
+                length = 1;
+            } else if ((b & 0xE0) == 0xC0) {
+                length = 2;
+            } else if ((b & 0xF0) == 0xE0) {
+                length = 3;
+            } else {
+                length = 4;
+            }
+
+            return count - i >= length;
+        }
+
+        return count > 0;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return socket != null;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (socket == null) {
+            return;
+        }
+
+        Socket socket = this.socket;
+        this.socket = null;
+        this.is = null;
+        this.os = null;
+        socket.close();
+    }
+
+    /**
+     * Take the text produced since the output was taken the last time.
+     *
+     * @return Returns the text.
+     */
+    public synchronized String takeOutput() {
+        try {
+            return output.toString("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            output.reset();
+        }
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+}
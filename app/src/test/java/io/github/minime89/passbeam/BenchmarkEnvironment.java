@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam;
+
+import android.content.Context;
+
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.lang.reflect.Field;
+
+/**
+ * Environment of the JMH benchmarks and the other tools which run on the JVM using the real assets
+ * of the application, e.g. the {@link io.github.minime89.passbeam.keyboard.LayoutValidator}. The
+ * {@link PassBeamApplication} is stubbed like in the unit tests, but since JMH doesn't run the
+ * benchmarks with the PowerMock runner, the stub is installed into the static instance field
+ * directly.
+ */
+public class BenchmarkEnvironment {
+    private BenchmarkEnvironment() {
+
+    }
+
+    /**
+     * Install the stubbed {@link PassBeamApplication}. The working directory must be the directory
+     * of the app module.
+     *
+     * @throws Exception When the stub couldn't be installed.
+     */
+    public static void setUp() throws Exception {
+        //stub only mocks don't record invocations, which would otherwise pile up in the benchmarks
+        PassBeamApplication app = Mockito.mock(PassBeamApplication.class, Mockito.withSettings().stubOnly());
+        Context context = Mockito.mock(Context.class, Mockito.withSettings().stubOnly());
+        Mockito.when(context.getExternalFilesDir(null)).thenReturn(new File(System.getProperty("user.dir"), "src/main/assets/app"));
+        Mockito.when(context.getCacheDir()).thenReturn(new File(System.getProperty("java.io.tmpdir"), "passbeam-benchmark"));
+        Mockito.when(app.getContext()).thenReturn(context);
+
+        Field instance = PassBeamApplication.class.getDeclaredField("instance");
+        instance.setAccessible(true);
+        instance.set(null, app);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import io.github.minime89.passbeam.keyboard.Keycodes;
+import io.github.minime89.passbeam.keyboard.Keysyms;
+import io.github.minime89.passbeam.keyboard.Scancodes;
+
+/**
+ * Benchmarks parsing the XML files of the tables using {@link FileManager#loadXmlFile(File, Class)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileManagerBenchmark {
+    @Param({"us", "de", "fr", "ru", "jp"})
+    public String keycodesId;
+
+    private FileManager fileManager;
+    private File keycodesFile;
+    private File keysymsFile;
+    private File scancodesFile;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkEnvironment.setUp();
+
+        fileManager = new FileManager();
+        keycodesFile = fileManager.resolvePath("keycodes/" + keycodesId);
+        keysymsFile = fileManager.resolvePath("keysyms/" + Keysyms.DEFAULT_ID);
+        scancodesFile = fileManager.resolvePath("scancodes/" + Scancodes.DEFAULT_ID);
+    }
+
+    @Benchmark
+    public Keycodes loadXmlKeycodes() throws FileManager.FileManagerException {
+        return fileManager.loadXmlFile(keycodesFile, Keycodes.class);
+    }
+
+    @Benchmark
+    public Keysyms loadXmlKeysyms() throws FileManager.FileManagerException {
+        return fileManager.loadXmlFile(keysymsFile, Keysyms.class);
+    }
+
+    @Benchmark
+    public Scancodes loadXmlScancodes() throws FileManager.FileManagerException {
+        return fileManager.loadXmlFile(scancodesFile, Scancodes.class);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class LatencyTracerTest {
+    private static final double DELTA = 1e-6;
+
+    @Before
+    public void before() {
+        LatencyTracer.clear();
+    }
+
+    /**
+     * Record traces whose conversion took the given number of milliseconds.
+     */
+    private static void recordConversions(int first, int last) {
+        for (int i = first; i <= last; i++) {
+            int trace = LatencyTracer.begin();
+            long start = TimeUnit.SECONDS.toNanos(i);
+            LatencyTracer.record(trace, LatencyTracer.Stage.CONVERT_START, start);
+            LatencyTracer.record(trace, LatencyTracer.Stage.CONVERT_END, start + TimeUnit.MILLISECONDS.toNanos(i));
+        }
+    }
+
+    /**
+     * Get the count, p50, p95 and max of a span from the report, in milliseconds.
+     */
+    private static double[] getSpan(String name) {
+        for (String line : LatencyTracer.getReport().split("\n")) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields[0].equals(name)) {
+                double[] values = new double[4];
+                for (int i = 0; i < values.length; i++) {
+                    //spans without samples have no percentiles
+                    values[i] = fields[i + 1].equals("-") ? Double.NaN : Double.parseDouble(fields[i + 1]);
+                }
+
+                return values;
+            }
+        }
+
+        fail(String.format("span '%s' isn't part of the report", name));
+        return null;
+    }
+
+    @Test
+    public void testPercentiles() {
+        recordConversions(1, 100);
+
+        double[] span = getSpan("convert");
+        assertEquals(100, span[0], DELTA);
+        assertEquals("expect the median", 50, span[1], DELTA);
+        assertEquals("expect the 95th percentile", 95, span[2], DELTA);
+        assertEquals("expect the maximum", 100, span[3], DELTA);
+    }
+
+    @Test
+    public void testRingBufferWraparound() {
+        //3000 traces of two events exceed the capacity of 4096 events, hence only the last 2048
+        //traces are kept
+        recordConversions(0, 2999);
+
+        double[] span = getSpan("convert");
+        assertEquals("expect that the oldest events were overwritten", 2048, span[0], DELTA);
+        assertEquals(952 + 1023, span[1], DELTA);
+        assertEquals(952 + 1945, span[2], DELTA);
+        assertEquals(2999, span[3], DELTA);
+    }
+
+    @Test
+    public void testClear() {
+        recordConversions(1, 10);
+        LatencyTracer.clear();
+
+        assertEquals(0, getSpan("convert")[0], DELTA);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import io.github.minime89.passbeam.keyboard.Pacer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PassBeamConfigTest {
+    private static final PassBeamConfig.Output PRIMARY = new PassBeamConfig.Output("/dev/hidg0", "us", 20, Pacer.Mode.FIXED_RATE, true);
+
+    @Test
+    public void testNoAdditionalOutputs() {
+        List<PassBeamConfig.Output> outputs = PassBeamConfig.parseOutputs("", PRIMARY);
+
+        assertEquals(1, outputs.size());
+        assertSame("expect that the primary output comes first", PRIMARY, outputs.get(0));
+    }
+
+    @Test
+    public void testAdditionalOutputs() {
+        String outputsStr = "# comment\n"
+                + "/dev/hidg1\n"
+                + "\n"
+                + "  /dev/hidg2   de  \n"
+                + "/dev/hidg3 fr MIN_GAP 5\n";
+        List<PassBeamConfig.Output> outputs = PassBeamConfig.parseOutputs(outputsStr, PRIMARY);
+
+        assertEquals(4, outputs.size());
+
+        PassBeamConfig.Output output = outputs.get(1);
+        assertEquals("/dev/hidg1", output.getDevice());
+        assertEquals("expect that the omitted keyboard layout is taken from the primary output", "us", output.getKeyboardLayout());
+        assertEquals(Pacer.Mode.FIXED_RATE, output.getPacingMode());
+        assertEquals(20, output.getCharacterTimeout());
+        assertTrue("expect that host feedback is taken from the primary output", output.isHostFeedback());
+
+        output = outputs.get(2);
+        assertEquals("/dev/hidg2", output.getDevice());
+        assertEquals("de", output.getKeyboardLayout());
+        assertEquals(Pacer.Mode.FIXED_RATE, output.getPacingMode());
+
+        output = outputs.get(3);
+        assertEquals("/dev/hidg3", output.getDevice());
+        assertEquals("fr", output.getKeyboardLayout());
+        assertEquals(Pacer.Mode.MIN_GAP, output.getPacingMode());
+        assertEquals(5, output.getCharacterTimeout());
+    }
+
+    @Test
+    public void testInvalidOutputs() {
+        String outputsStr = "/dev/hidg0 de\n"
+                + "/dev/hidg1 de SLOW fast\n"
+                + "/dev/hidg1 fr\n";
+        List<PassBeamConfig.Output> outputs = PassBeamConfig.parseOutputs(outputsStr, PRIMARY);
+
+        assertEquals("expect that duplicate devices are ignored", 2, outputs.size());
+        assertSame(PRIMARY, outputs.get(0));
+
+        PassBeamConfig.Output output = outputs.get(1);
+        assertEquals("de", output.getKeyboardLayout());
+        assertEquals("expect that an invalid pacing mode is taken from the primary output", Pacer.Mode.FIXED_RATE, output.getPacingMode());
+        assertEquals("expect that an invalid character timeout is taken from the primary output", 20, output.getCharacterTimeout());
+    }
+
+    @Test
+    public void testValidDevice() {
+        assertTrue(PassBeamConfig.isValidDevice("/dev/hidg0"));
+        assertFalse("expect that relative device files are rejected", PassBeamConfig.isValidDevice("hidg0"));
+        assertFalse(PassBeamConfig.isValidDevice("dev/hidg0"));
+        assertFalse(PassBeamConfig.isValidDevice(""));
+        assertFalse("expect that the root directory is rejected", PassBeamConfig.isValidDevice("/"));
+    }
+
+    @Test
+    public void testRelativeOutputDevices() {
+        String outputsStr = "hidg1\n"
+                + "/dev/hidg2\n";
+        List<PassBeamConfig.Output> outputs = PassBeamConfig.parseOutputs(outputsStr, PRIMARY);
+
+        assertEquals("expect that the relative device file was skipped", 2, outputs.size());
+        assertEquals("/dev/hidg2", outputs.get(1).getDevice());
+
+        assertFalse(PassBeamConfig.isValidOutputs(outputsStr));
+        assertTrue(PassBeamConfig.isValidOutputs("# comment\n/dev/hidg1 de\n"));
+    }
+
+    @Test
+    public void testNegativeCharacterTimeout() {
+        String outputsStr = "/dev/hidg1 us FIXED_RATE -5\n";
+        List<PassBeamConfig.Output> outputs = PassBeamConfig.parseOutputs(outputsStr, PRIMARY);
+
+        assertEquals(2, outputs.size());
+        assertEquals("expect that a negative character timeout is taken from the primary output", 20, outputs.get(1).getCharacterTimeout());
+        outputs.get(1).createPacer();
+
+        assertFalse(PassBeamConfig.isValidOutputs(outputsStr));
+        assertFalse(PassBeamConfig.isValidOutputs("/dev/hidg1 us FIXED_RATE fast\n"));
+        assertTrue(PassBeamConfig.isValidOutputs("/dev/hidg1 us FIXED_RATE 0\n"));
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import io.github.minime89.passbeam.BenchmarkEnvironment;
+
+/**
+ * Benchmarks encoding characters and strings using the {@link Converter}. Run with
+ * <code>-prof gc</code> to report the allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConverterBenchmark {
+    private static final String PASSWORD = "x7#Kq!9vR2$mPz&w";
+    private static final String TEXT_ALPHABET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 .,;:!?-_()[]{}<>@#$%&*+=/\\|'\"";
+    private static final int TEXT_LENGTH = 4096;
+
+    private Converter converter;
+    private String text;
+    private int[] textPlan;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkEnvironment.setUp();
+
+        converter = new Converter();
+        converter.load("us");
+
+        Random random = new Random(42);
+        StringBuilder textBuilder = new StringBuilder(TEXT_LENGTH);
+        for (int i = 0; i < TEXT_LENGTH; i++) {
+            textBuilder.append(TEXT_ALPHABET.charAt(random.nextInt(TEXT_ALPHABET.length())));
+        }
+        text = textBuilder.toString();
+        textPlan = converter.plan(text);
+
+        buffer = ByteBuffer.allocate(64 * Converter.REPORT_SIZE);
+    }
+
+    @Benchmark
+    public byte[] convertChar() throws Converter.ConverterException {
+        return converter.convert('Q');
+    }
+
+    @Benchmark
+    public Collection<byte[]> convertPassword() throws Converter.ConverterException {
+        return converter.convert(PASSWORD);
+    }
+
+    @Benchmark
+    public Collection<byte[]> convertText() throws Converter.ConverterException {
+        return converter.convert(text);
+    }
+
+    @Benchmark
+    public int[] planText() throws Converter.ConverterException {
+        return converter.plan(text);
+    }
+
+    /**
+     * Encode a text in chunks into a reused buffer using the preferred symbols.
+     */
+    @Benchmark
+    public int convertTextIntoBuffer() throws Converter.ConverterException {
+        int reports = 0;
+        int offset = 0;
+        while (offset < text.length()) {
+            buffer.clear();
+            offset += converter.convert(text, offset, buffer);
+            reports += buffer.position() / Converter.REPORT_SIZE;
+        }
+
+        return reports;
+    }
+
+    /**
+     * Encode a planned text in chunks into a reused buffer, like the writer does.
+     */
+    @Benchmark
+    public int convertPlannedTextIntoBuffer() {
+        int reports = 0;
+        int offset = 0;
+        while (offset < textPlan.length) {
+            buffer.clear();
+            offset += converter.convert(textPlan, offset, buffer, false);
+            reports += buffer.position() / Converter.REPORT_SIZE;
+        }
+
+        return reports;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import io.github.minime89.passbeam.BenchmarkEnvironment;
+import io.github.minime89.passbeam.FileManager;
+
+/**
+ * Benchmarks loading layouts using {@link Converter#load(String)}. The compiled tables are
+ * created during the setup, hence the benchmarks measure loading the compiled tables with and
+ * without the in-memory table cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConverterLoadBenchmark {
+    @Param({"us", "de", "fr", "ru", "jp", "us-dvorak"})
+    public String keycodesId;
+
+    private Converter converter;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkEnvironment.setUp();
+
+        converter = new Converter();
+        converter.load(keycodesId);
+    }
+
+    @Benchmark
+    public CompiledLayout load() throws FileManager.FileManagerException {
+        converter.load(keycodesId);
+        return converter.getLayout();
+    }
+
+    @Benchmark
+    public CompiledLayout loadUncached() throws FileManager.FileManagerException {
+        FileManager.clearCache();
+        converter.load(keycodesId);
+        return converter.getLayout();
+    }
+}
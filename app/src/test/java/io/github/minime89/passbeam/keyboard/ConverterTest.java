@@ -50,6 +50,7 @@ public class ConverterTest {
 
         Context context = Mockito.mock(Context.class);
         Mockito.when(context.getExternalFilesDir(null)).thenReturn(new File(System.getProperty("user.dir"), "src/main/assets/app"));
+        Mockito.when(context.getCacheDir()).thenReturn(new File(System.getProperty("java.io.tmpdir"), "passbeam"));
         Mockito.when(app.getContext()).thenReturn(context);
     }
 
@@ -94,7 +95,11 @@ public class ConverterTest {
 
                 byte[] buffer = new byte[256];
                 int len = virtualKeyboardInput.read(buffer);
-                outputStrBuilder.append(new String(buffer, 0, len, "UTF-8"));
+
+                //keyboard events which don't produce text (e.g. releasing all keys) are answered with a single null byte
+                if (len != 1 || buffer[0] != 0) {
+                    outputStrBuilder.append(new String(buffer, 0, len, "UTF-8"));
+                }
             }
             String outputStr = outputStrBuilder.toString();
 
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import io.github.minime89.passbeam.BenchmarkEnvironment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class DecoderTest {
+    private static final int TEXT_LENGTH = 1 << 20;
+
+    private Converter converter;
+    private String text;
+
+    @Before
+    public void before() throws Exception {
+        BenchmarkEnvironment.setUp();
+
+        converter = new Converter();
+        converter.load(Keycodes.DEFAULT_ID);
+
+        //random text of all characters covered by the layout
+        Keymap keymap = converter.getKeymap();
+        StringBuilder characters = new StringBuilder();
+        for (char character = 0x20; character < 0x7F; character++) {
+            if (keymap.contains(character)) {
+                characters.append(character);
+            }
+        }
+
+        Random random = new Random(0);
+        StringBuilder text = new StringBuilder(TEXT_LENGTH);
+        for (int i = 0; i < TEXT_LENGTH; i++) {
+            text.append(characters.charAt(random.nextInt(characters.length())));
+        }
+        this.text = text.toString();
+    }
+
+    private ByteBuffer convert(boolean rollover) throws Converter.ConverterException {
+        ByteBuffer buffer = ByteBuffer.allocate(2 * text.length() * Converter.REPORT_SIZE);
+        converter.convert(text, 0, buffer, rollover);
+        buffer.flip();
+
+        return buffer;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Decoder decoder = converter.getDecoder();
+
+        assertEquals("expect that the text round-trips", text, decoder.decode(convert(false)));
+        assertEquals("expect that the text round-trips in rollover mode", text, decoder.decode(convert(true)));
+    }
+
+    @Test
+    public void testChunks() throws Exception {
+        ByteBuffer buffer = convert(true);
+        Decoder.Stream stream = converter.getDecoder().newStream();
+        StringBuilder out = new StringBuilder(text.length());
+
+        //chunks which split keyboard events
+        Random random = new Random(0);
+        while (buffer.hasRemaining()) {
+            ByteBuffer chunk = buffer.slice();
+            chunk.limit(Math.min(chunk.remaining(), 1 + random.nextInt(3 * Converter.REPORT_SIZE)));
+            buffer.position(buffer.position() + chunk.limit());
+
+            stream.decode(chunk, out);
+        }
+
+        assertFalse("expect that no incomplete keyboard event is left", stream.hasPartial());
+        assertEquals("expect that all keys produce characters", 0, stream.getUnmappedCount());
+        assertEquals("expect that the text round-trips in chunks", text, out.toString());
+    }
+
+    @Test
+    public void testConvertInChunks() throws Exception {
+        Decoder.Stream stream = converter.getDecoder().newStream();
+        StringBuilder out = new StringBuilder(text.length());
+
+        //a small buffer reused for every chunk, like the writer does
+        ByteBuffer buffer = ByteBuffer.allocate(64 * Converter.REPORT_SIZE);
+        int offset = 0;
+        while (offset < text.length()) {
+            buffer.clear();
+            offset += converter.convert(text, offset, buffer, true);
+            buffer.flip();
+
+            stream.decode(buffer, out);
+        }
+
+        assertEquals("expect that the text round-trips when converted in chunks", text, out.toString());
+    }
+
+    @Test
+    public void testConvertUnknownCharacter() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * Converter.REPORT_SIZE);
+        try {
+            converter.convert("abc\u4e00", 0, buffer, false);
+            fail("expect that the character can't be converted");
+        } catch (Converter.ConverterException e) {
+            assertEquals("expect that nothing was written to the buffer", 0, buffer.position());
+        }
+    }
+}
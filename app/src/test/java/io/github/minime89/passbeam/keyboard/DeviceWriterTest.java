@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.github.minime89.passbeam.BenchmarkEnvironment;
+import io.github.minime89.passbeam.PassBeamConfig;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceWriterTest {
+    private static final String TEXT = "Hello, World! {passbeam} 0123456789 yz";
+    private static final long TIMEOUT = 10000;
+
+    private PassBeamConfig.Output usOutput;
+    private PassBeamConfig.Output deOutput;
+
+    @Before
+    public void before() throws Exception {
+        BenchmarkEnvironment.setUp();
+
+        usOutput = new PassBeamConfig.Output("/dev/hidg0", "us", 0, Pacer.Mode.FIXED_RATE, false);
+        deOutput = new PassBeamConfig.Output("/dev/hidg1", "de", 0, Pacer.Mode.MIN_GAP, false);
+    }
+
+    private static DeviceWriter createWriter(PassBeamConfig.Output output, HidSink sink) throws Exception {
+        final HidSink writerSink = sink;
+        DeviceWriter writer = new DeviceWriter(output, DeviceWriter.OverflowPolicy.BLOCK, DeviceWriter.DEFAULT_QUEUE_CAPACITY, new HidSink.Factory() {
+            @Override
+            public HidSink create() {
+                return writerSink;
+            }
+        });
+        writer.getConverter().load(output.getKeyboardLayout());
+
+        return writer;
+    }
+
+    private static void awaitReports(MemoryHidSink sink, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (sink.getReportCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testOutputsUseTheirOwnLayout() throws Exception {
+        MemoryHidSink usSink = new MemoryHidSink();
+        MemoryHidSink deSink = new MemoryHidSink();
+        DeviceWriter usWriter = createWriter(usOutput, usSink);
+        DeviceWriter deWriter = createWriter(deOutput, deSink);
+
+        usWriter.start();
+        deWriter.start();
+        try {
+            ByteBuffer usBuffer = usWriter.encode(TEXT, false);
+            ByteBuffer deBuffer = deWriter.encode(TEXT, false);
+            int usCount = usBuffer.limit() / Converter.REPORT_SIZE;
+            int deCount = deBuffer.limit() / Converter.REPORT_SIZE;
+
+            assertTrue("expect that the US keyboard events were queued", usWriter.submit(usBuffer));
+            assertTrue("expect that the German keyboard events were queued", deWriter.submit(deBuffer));
+
+            awaitReports(usSink, usCount);
+            awaitReports(deSink, deCount);
+
+            assertEquals("expect that the US output produces the text", TEXT, usWriter.getConverter().getDecoder().decode(usSink.getReports()));
+            assertEquals("expect that the German output produces the text", TEXT, deWriter.getConverter().getDecoder().decode(deSink.getReports()));
+        } finally {
+            usWriter.stop();
+            deWriter.stop();
+        }
+    }
+
+    @Test
+    public void testSlowOutputDoesNotThrottleOthers() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        MemoryHidSink slowSink = new MemoryHidSink() {
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+                super.write(buffer, offset, length);
+            }
+        };
+        MemoryHidSink fastSink = new MemoryHidSink();
+        DeviceWriter slowWriter = createWriter(usOutput, slowSink);
+        DeviceWriter fastWriter = createWriter(deOutput, fastSink);
+
+        slowWriter.start();
+        fastWriter.start();
+        try {
+            ByteBuffer slowBuffer = slowWriter.encode(TEXT, false);
+            ByteBuffer fastBuffer = fastWriter.encode(TEXT, false);
+            int slowCount = slowBuffer.limit() / Converter.REPORT_SIZE;
+            int fastCount = fastBuffer.limit() / Converter.REPORT_SIZE;
+
+            assertTrue(slowWriter.submit(slowBuffer));
+            assertTrue(fastWriter.submit(fastBuffer));
+
+            awaitReports(fastSink, fastCount);
+            assertEquals("expect that the fast output wrote all keyboard events", fastCount, fastSink.getReportCount());
+            assertEquals("expect that the slow output is still blocked", 0, slowSink.getReportCount());
+
+            release.countDown();
+            awaitReports(slowSink, slowCount);
+            assertEquals("expect that the slow output wrote all keyboard events after it was released", TEXT, slowWriter.getConverter().getDecoder().decode(slowSink.getReports()));
+        } finally {
+            release.countDown();
+            slowWriter.stop();
+            fastWriter.stop();
+        }
+    }
+
+    @Test
+    public void testCapsLockCorrection() throws Exception {
+        PassBeamConfig.Output output = new PassBeamConfig.Output("/dev/hidg0", "us", 0, Pacer.Mode.ADAPTIVE, true);
+        final MemoryHidSource source = new MemoryHidSource();
+        final MemoryHidSink sink = new MemoryHidSink();
+        DeviceWriter writer = new DeviceWriter(output, DeviceWriter.OverflowPolicy.BLOCK, DeviceWriter.DEFAULT_QUEUE_CAPACITY, new HidSink.Factory() {
+            @Override
+            public HidSink create() {
+                return sink;
+            }
+        }, new HidSource.Factory() {
+            @Override
+            public HidSource create() {
+                return source;
+            }
+        });
+        writer.getConverter().load(Keycodes.DEFAULT_ID);
+
+        writer.start();
+        try {
+            writer.openSession();
+            source.put(HostMonitor.LED_CAPS_LOCK);
+
+            HostMonitor hostMonitor = writer.getHostMonitor();
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (hostMonitor.getReportCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertTrue("expect that the host monitor received the LED state", hostMonitor.isCapsLock());
+
+            ByteBuffer buffer = writer.encode(TEXT, false);
+            int count = buffer.limit() / Converter.REPORT_SIZE;
+            assertTrue(writer.submit(buffer));
+
+            //Caps Lock is pressed and released before and after the string
+            awaitReports(sink, count + 4);
+            ByteBuffer reports = sink.getReports();
+            assertEquals(count + 4, reports.limit() / Converter.REPORT_SIZE);
+
+            int end = reports.limit();
+            assertEquals("expect that Caps Lock was disabled before the string", 57, reports.get(2));
+            assertEquals("expect that Caps Lock was enabled again after the string", 57, reports.get(end - 2 * Converter.REPORT_SIZE + 2));
+
+            reports.position(2 * Converter.REPORT_SIZE);
+            reports.limit(end - 2 * Converter.REPORT_SIZE);
+            assertEquals("expect that the string was written unchanged", TEXT, writer.getConverter().getDecoder().decode(reports.slice()));
+        } finally {
+            writer.stop();
+        }
+    }
+
+    @Test
+    public void testSessionRequestsDoNotTakeQueueSpace() throws Exception {
+        final MemoryHidSink sink = new MemoryHidSink();
+        DeviceWriter writer = new DeviceWriter(usOutput, DeviceWriter.OverflowPolicy.REJECT, 1, new HidSink.Factory() {
+            @Override
+            public HidSink create() {
+                return sink;
+            }
+        });
+        writer.getConverter().load(usOutput.getKeyboardLayout());
+
+        //the writer thread isn't started yet, hence nothing is taken from the queue
+        writer.openSession();
+        writer.openSession();
+        ByteBuffer buffer = writer.encode(TEXT, false);
+        int count = buffer.limit() / Converter.REPORT_SIZE;
+        assertTrue("expect that the string isn't rejected because of the session requests", writer.submit(buffer));
+
+        writer.start();
+        try {
+            awaitReports(sink, count);
+            assertEquals(TEXT, writer.getConverter().getDecoder().decode(sink.getReports()));
+        } finally {
+            writer.stop();
+        }
+    }
+
+    @Test
+    public void testSubmitSlicedBuffer() throws Exception {
+        MemoryHidSink sink = new MemoryHidSink();
+        DeviceWriter writer = createWriter(usOutput, sink);
+
+        ByteBuffer encoded = writer.encode(TEXT, false);
+        int count = encoded.limit() / Converter.REPORT_SIZE;
+
+        //the keyboard events are preceded and followed by other data in the backing array
+        byte[] array = new byte[encoded.limit() + 4 * Converter.REPORT_SIZE];
+        Arrays.fill(array, (byte) 0x55);
+        System.arraycopy(encoded.array(), 0, array, 2 * Converter.REPORT_SIZE, encoded.limit());
+        ByteBuffer outer = ByteBuffer.wrap(array, Converter.REPORT_SIZE, encoded.limit() + 2 * Converter.REPORT_SIZE);
+        ByteBuffer buffer = outer.slice();
+        buffer.position(Converter.REPORT_SIZE);
+        buffer.limit(Converter.REPORT_SIZE + encoded.limit());
+
+        writer.start();
+        try {
+            assertTrue(writer.submit(buffer));
+
+            awaitReports(sink, count);
+            assertEquals("expect that only the keyboard events between position and limit were written", count, sink.getReportCount());
+            assertEquals(TEXT, writer.getConverter().getDecoder().decode(sink.getReports()));
+        } finally {
+            writer.stop();
+        }
+
+        assertEquals("expect that data before the slice wasn't overwritten", 0x55, array[0]);
+        assertEquals("expect that the slice was overwritten", 0, array[2 * Converter.REPORT_SIZE + 2]);
+        assertEquals("expect that data after the slice wasn't overwritten", 0x55, array[array.length - 1]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSubmitDirectBuffer() throws Exception {
+        DeviceWriter writer = createWriter(usOutput, new MemoryHidSink());
+        ByteBuffer buffer = ByteBuffer.allocateDirect(2 * Converter.REPORT_SIZE);
+        writer.submit(buffer);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetOutputOfOtherDevice() throws Exception {
+        DeviceWriter writer = createWriter(usOutput, new MemoryHidSink());
+        writer.setOutput(deOutput);
+    }
+}
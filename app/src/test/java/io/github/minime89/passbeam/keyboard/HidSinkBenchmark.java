@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import io.github.minime89.passbeam.BenchmarkEnvironment;
+import io.github.minime89.passbeam.PassBeamConfig;
+
+/**
+ * Benchmarks encoding a password like the writer does and writing its keyboard events to the
+ * sinks which don't need superuser privileges. The socket sink writes to a
+ * {@link VirtualKeyboardServer}, hence it measures the round trip of every keyboard event.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HidSinkBenchmark {
+    private static final String PASSWORD = "x7#Kq!9vR2$mPz&w";
+
+    private DeviceWriter deviceWriter;
+    private MemoryHidSink memorySink;
+    private VirtualKeyboardServer server;
+    private SocketHidSink socketSink;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkEnvironment.setUp();
+
+        PassBeamConfig.Output output = new PassBeamConfig.Output(RootHidSink.DEFAULT_DEVICE, Keycodes.DEFAULT_ID, 0, Pacer.Mode.FIXED_RATE, false);
+        deviceWriter = new DeviceWriter(output, DeviceWriter.OverflowPolicy.REJECT, DeviceWriter.DEFAULT_QUEUE_CAPACITY);
+        deviceWriter.getConverter().load(Keycodes.DEFAULT_ID);
+
+        memorySink = new MemoryHidSink();
+        memorySink.open();
+
+        server = new VirtualKeyboardServer(0, deviceWriter.getConverter().getDecoder(), 0);
+        server.start();
+        socketSink = new SocketHidSink("localhost", server.getPort());
+        socketSink.open();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        socketSink.close();
+        server.close();
+    }
+
+    private void write(HidSink sink) throws IOException {
+        ByteBuffer buffer = deviceWriter.encode(PASSWORD, false);
+        sink.write(buffer.array(), 0, buffer.limit());
+        DeviceWriter.clear(buffer);
+    }
+
+    @Benchmark
+    public void writeMemory() throws IOException {
+        write(memorySink);
+        memorySink.clear();
+    }
+
+    @Benchmark
+    public String writeSocket() throws IOException {
+        write(socketSink);
+        return socketSink.takeOutput();
+    }
+}
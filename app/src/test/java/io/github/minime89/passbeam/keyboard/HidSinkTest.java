@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import io.github.minime89.passbeam.BenchmarkEnvironment;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class HidSinkTest {
+    private static final String TEXT = "Hello, World! {passbeam} 0123456789";
+
+    private Converter converter;
+    private byte[] reports;
+
+    @Before
+    public void before() throws Exception {
+        BenchmarkEnvironment.setUp();
+
+        converter = new Converter();
+        converter.load(Keycodes.DEFAULT_ID);
+
+        ByteBuffer buffer = ByteBuffer.allocate(2 * TEXT.length() * Converter.REPORT_SIZE);
+        converter.convert(TEXT, 0, buffer, true);
+        buffer.flip();
+        reports = new byte[buffer.remaining()];
+        buffer.get(reports);
+    }
+
+    @Test
+    public void testMemorySink() throws Exception {
+        MemoryHidSink sink = new MemoryHidSink();
+        sink.open();
+        sink.write(reports, 0, reports.length);
+        sink.close();
+
+        assertEquals("expect that all keyboard events were recorded", reports.length / Converter.REPORT_SIZE, sink.getReportCount());
+        assertEquals("expect that the recorded keyboard events produce the text", TEXT, converter.getDecoder().decode(sink.getReports()));
+    }
+
+    @Test
+    public void testFileSink() throws Exception {
+        File file = File.createTempFile("passbeam", ".hid");
+        try {
+            FileHidSink sink = new FileHidSink(file.getPath());
+            sink.open();
+            sink.write(reports, 0, reports.length);
+            sink.close();
+
+            byte[] written = new byte[(int) file.length()];
+            DataInputStream is = new DataInputStream(new FileInputStream(file));
+            try {
+                is.readFully(written);
+            } finally {
+                is.close();
+            }
+            assertArrayEquals("expect that the keyboard events were written to the file", reports, written);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testSocketSink() throws Exception {
+        VirtualKeyboardServer server = new VirtualKeyboardServer(0, converter.getDecoder(), 0);
+        server.start();
+        try {
+            SocketHidSink sink = new SocketHidSink("localhost", server.getPort());
+            sink.open();
+            sink.write(reports, 0, reports.length);
+            sink.close();
+
+            assertEquals("expect that the virtual keyboard produced the text", TEXT, sink.takeOutput());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testSocketSinkSplitAnswer() throws Exception {
+        final ServerSocket serverSocket = new ServerSocket(0);
+        Thread server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = serverSocket.accept();
+                    try {
+                        DataInputStream is = new DataInputStream(socket.getInputStream());
+                        OutputStream os = socket.getOutputStream();
+                        byte[] report = new byte[Converter.REPORT_SIZE];
+                        byte[] answer = "\u00e4".getBytes("UTF-8");
+                        for (int i = 0; i < 2; i++) {
+                            is.readFully(report);
+
+                            //the answer arrives in two parts
+                            os.write(answer, 0, 1);
+                            os.flush();
+                            Thread.sleep(50);
+                            os.write(answer, 1, answer.length - 1);
+                            os.flush();
+                        }
+                    } finally {
+                        socket.close();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        server.start();
+        try {
+            SocketHidSink sink = new SocketHidSink("localhost", serverSocket.getLocalPort());
+            sink.open();
+            sink.write(reports, 0, 2 * Converter.REPORT_SIZE);
+            sink.close();
+
+            assertEquals("expect that every answer was read completely", "\u00e4\u00e4", sink.takeOutput());
+        } finally {
+            serverSocket.close();
+            server.join();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HostMonitorTest {
+    private static final long TIMEOUT = 10000;
+
+    private static void awaitReports(HostMonitor hostMonitor, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (hostMonitor.getReportCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testLedState() throws Exception {
+        final MemoryHidSource source = new MemoryHidSource();
+        HostMonitor hostMonitor = new HostMonitor(new HidSource.Factory() {
+            @Override
+            public HidSource create() {
+                return source;
+            }
+        });
+
+        assertEquals(HostMonitor.LEDS_UNKNOWN, hostMonitor.getLeds());
+        assertFalse("expect that an unknown LED state doesn't count as Caps Lock", hostMonitor.isCapsLock());
+        assertEquals(-1, hostMonitor.getTimeSinceLastReport(TimeUnit.MILLISECONDS));
+
+        hostMonitor.start();
+        try {
+            source.put(HostMonitor.LED_NUM_LOCK);
+            source.put(HostMonitor.LED_NUM_LOCK | HostMonitor.LED_CAPS_LOCK);
+            awaitReports(hostMonitor, 2);
+
+            assertEquals(2, hostMonitor.getReportCount());
+            assertEquals(HostMonitor.LED_NUM_LOCK | HostMonitor.LED_CAPS_LOCK, hostMonitor.getLeds());
+            assertTrue(hostMonitor.isCapsLock());
+            assertTrue(hostMonitor.getTimeSinceLastReport(TimeUnit.MILLISECONDS) >= 0);
+
+            source.put(0);
+            awaitReports(hostMonitor, 3);
+            assertFalse(hostMonitor.isCapsLock());
+        } finally {
+            hostMonitor.stop();
+        }
+
+        assertFalse(hostMonitor.isRunning());
+        assertFalse("expect that the source was closed", source.isOpen());
+
+        hostMonitor.start();
+        try {
+            assertEquals("expect that the LED state is unknown after a restart", HostMonitor.LEDS_UNKNOWN, hostMonitor.getLeds());
+        } finally {
+            hostMonitor.stop();
+        }
+    }
+
+    @Test
+    public void testGiveUpAfterFailures() throws Exception {
+        final AtomicInteger opened = new AtomicInteger();
+        HostMonitor hostMonitor = new HostMonitor(new HidSource.Factory() {
+            @Override
+            public HidSource create() {
+                return new MemoryHidSource() {
+                    @Override
+                    public synchronized void open() throws IOException {
+                        opened.incrementAndGet();
+                        throw new IOException("output reports aren't supported");
+                    }
+                };
+            }
+        }, 1);
+
+        hostMonitor.start();
+        try {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (!hostMonitor.isFailed() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+
+            assertTrue("expect that the monitor gave up", hostMonitor.isFailed());
+            assertTrue("expect that the monitor stays started for the session", hostMonitor.isRunning());
+            Thread.sleep(50);
+            assertEquals("expect that the source isn't opened again after giving up", HostMonitor.MAX_FAILURES, opened.get());
+        } finally {
+            hostMonitor.stop();
+        }
+
+        hostMonitor.start();
+        try {
+            assertFalse("expect that the monitor tries again after a restart", hostMonitor.isFailed());
+        } finally {
+            hostMonitor.stop();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import io.github.minime89.passbeam.BenchmarkEnvironment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class KeycodeTest {
+    private static final int SHIFT = Keystate.MODIFIER_LEFT_SHIFT;
+    private static final int ALT_GR = Keystate.MODIFIER_RIGHT_ALT;
+
+    @Before
+    public void before() throws Exception {
+        BenchmarkEnvironment.setUp();
+    }
+
+    private static Keymap load(String id) throws Exception {
+        Converter converter = new Converter();
+        converter.load(id);
+
+        return converter.getKeymap();
+    }
+
+    private static void assertEntry(Keymap keymap, char character, int modifiers, int scancode) {
+        int entry = keymap.get(character);
+        assertEquals(String.format("expect the modifiers of '%c'", character), modifiers, Keymap.getModifiers(entry));
+        assertEquals(String.format("expect the scancode of '%c'", character), scancode, Keymap.getScancode(entry));
+    }
+
+    /**
+     * Keysyms beyond the fourth column used to be built without modifiers, hence the keymap chose
+     * them and the host typed the symbol of the first column of the key instead.
+     */
+    @Test
+    public void testColumnsWithUnknownModifiers() throws Exception {
+        Keymap t3 = load("de-T3");
+        //used to be the unmodified ',' key
+        assertEntry(t3, '$', SHIFT, 33);
+        //used to be the unmodified '+' key
+        assertEntry(t3, '@', ALT_GR, 20);
+        //used to be the unmodified '^' key
+        assertEntry(t3, '|', ALT_GR, 100);
+        //only in further columns, used to be the unmodified 'c' key
+        assertFalse(t3.contains('¢'));
+
+        Keymap multix = load("ca-multix");
+        //used to be the unmodified '4' key
+        assertEntry(multix, '¤', ALT_GR, 34);
+
+        Keymap neo = load("de-neo");
+        //used to be other unmodified keys
+        assertEntry(neo, ',', 0, 54);
+        assertEntry(neo, '.', 0, 55);
+        //only in further columns
+        assertFalse(neo.contains('≠'));
+    }
+}
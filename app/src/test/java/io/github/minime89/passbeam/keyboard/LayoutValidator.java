@@ -0,0 +1,437 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import io.github.minime89.passbeam.BenchmarkEnvironment;
+import io.github.minime89.passbeam.FileManager;
+
+/**
+ * Validates the whole layout catalog on the JVM, without the X server required by
+ * {@link ConverterTest}. Every layout is loaded and compiled concurrently on a fork-join pool.
+ * For every layout the validator determines which printable characters can be typed, which
+ * keycodes couldn't be resolved to a scancode, which keysym references couldn't be resolved to a
+ * keysym and how long loading and compiling the layout took. The covered characters are converted
+ * into keyboard events and decoded again using the {@link Decoder} of the layout, with and without
+ * rollover, to verify that they round-trip.
+ * <p/>
+ * The keysyms and scancodes tables are loaded once and shared by all layouts; every layout gets
+ * its own copy of the scancodes, see {@link Scancodes#load(String)}.
+ */
+public class LayoutValidator {
+    /**
+     * The first printable ASCII character.
+     */
+    private static final char ASCII_FIRST = 0x20;
+
+    /**
+     * The last printable ASCII character.
+     */
+    private static final char ASCII_LAST = 0x7E;
+
+    /**
+     * The keysym value X11 uses for empty columns of a keycode.
+     */
+    private static final int NO_SYMBOL = 0;
+
+    /**
+     * Result of validating a single layout.
+     */
+    public static class Result {
+        private final Layout layout;
+        private final BitSet coverage;
+        private final List<Integer> unresolvedScancodes;
+        private final List<Integer> unresolvedKeysyms;
+        private final BitSet roundTripErrors;
+        private final long buildTime;
+        private final String error;
+
+        private Result(Layout layout, BitSet coverage, List<Integer> unresolvedScancodes, List<Integer> unresolvedKeysyms, BitSet roundTripErrors, long buildTime, String error) {
+            this.layout = layout;
+            this.coverage = coverage;
+            this.unresolvedScancodes = unresolvedScancodes;
+            this.unresolvedKeysyms = unresolvedKeysyms;
+            this.roundTripErrors = roundTripErrors;
+            this.buildTime = buildTime;
+            this.error = error;
+        }
+
+        /**
+         * Check whether the layout could be loaded, contains at least one printable character and
+         * all covered characters round-trip.
+         *
+         * @return Returns true if the layout is valid.
+         */
+        public boolean isValid() {
+            return error == null && !coverage.isEmpty() && roundTripErrors.isEmpty();
+        }
+
+        public Layout getLayout() {
+            return layout;
+        }
+
+        /**
+         * Get the printable characters which can be typed with the layout. A bit is set for every
+         * character which is mapped by the {@link Keymap} of the layout.
+         *
+         * @return Returns the characters.
+         */
+        public BitSet getCoverage() {
+            return coverage;
+        }
+
+        /**
+         * Get the values of the keycodes which couldn't be resolved to a scancode.
+         *
+         * @return Returns the keycode values.
+         */
+        public List<Integer> getUnresolvedScancodes() {
+            return unresolvedScancodes;
+        }
+
+        /**
+         * Get the distinct values of the keysym references which couldn't be resolved to a keysym.
+         *
+         * @return Returns the keysym values.
+         */
+        public List<Integer> getUnresolvedKeysyms() {
+            return unresolvedKeysyms;
+        }
+
+        /**
+         * Get the covered characters which weren't decoded to the same character again.
+         *
+         * @return Returns the characters.
+         */
+        public BitSet getRoundTripErrors() {
+            return roundTripErrors;
+        }
+
+        /**
+         * Get the time it took to load and compile the layout.
+         *
+         * @return Returns the time in nanoseconds.
+         */
+        public long getBuildTime() {
+            return buildTime;
+        }
+
+        /**
+         * Get the reason why the layout couldn't be loaded.
+         *
+         * @return Returns the reason or null if the layout was loaded.
+         */
+        public String getError() {
+            return error;
+        }
+
+        public JSONObject dump() throws JSONException {
+            JSONObject obj = new JSONObject();
+            obj.put("id", layout.getId());
+            obj.put("valid", isValid());
+            obj.put("error", (error != null) ? error : JSONObject.NULL);
+            obj.put("buildTime", buildTime / 1e6);
+            obj.put("coverage", coverage.cardinality());
+            obj.put("missingAscii", getMissingAscii(coverage));
+            obj.put("characters", getCharacters(coverage));
+            obj.put("unresolvedScancodes", toJSONArray(unresolvedScancodes));
+            obj.put("unresolvedKeysyms", toJSONArray(unresolvedKeysyms));
+            obj.put("roundTripErrors", getCharacters(roundTripErrors));
+
+            return obj;
+        }
+
+        @Override
+        public String toString() {
+            try {
+                return dump().toString();
+            } catch (JSONException e) {
+                return super.toString();
+            }
+        }
+    }
+
+    /**
+     * Validates a single layout.
+     */
+    private class ValidateTask extends RecursiveTask<Result> {
+        private final Layout layout;
+
+        private ValidateTask(Layout layout) {
+            this.layout = layout;
+        }
+
+        @Override
+        protected Result compute() {
+            return validate(layout);
+        }
+    }
+
+    private final String keysymsId;
+    private final Keysyms keysyms;
+    private final Scancodes scancodes;
+
+    /**
+     * The characters of all printable keysyms.
+     */
+    private final BitSet printable;
+
+    /**
+     * Constructor. Loads the keysyms and scancodes tables shared by all layouts.
+     *
+     * @param keysymsId   The keysyms ID.
+     * @param scancodesId The scancodes ID.
+     * @throws FileManager.FileManagerException When the tables couldn't be loaded.
+     */
+    public LayoutValidator(String keysymsId, String scancodesId) throws FileManager.FileManagerException {
+        this.keysymsId = keysymsId;
+        this.keysyms = Keysyms.load(keysymsId);
+        this.scancodes = Scancodes.load(scancodesId);
+
+        printable = new BitSet();
+        for (Keysym keysym : keysyms.getKeysyms()) {
+            if (keysym.isPrintable()) {
+                printable.set(keysym.getUnicode().getCharacter());
+            }
+        }
+    }
+
+    /**
+     * Validate the given layouts concurrently.
+     *
+     * @param layouts The layouts.
+     * @param pool    The pool which runs the validations.
+     * @return Returns the results in the order of the layouts.
+     */
+    public List<Result> validate(Collection<Layout> layouts, ForkJoinPool pool) {
+        final List<ValidateTask> tasks = new ArrayList<>(layouts.size());
+        for (Layout layout : layouts) {
+            tasks.add(new ValidateTask(layout));
+        }
+
+        pool.invoke(new RecursiveTask<Void>() {
+            @Override
+            protected Void compute() {
+                invokeAll(tasks);
+                return null;
+            }
+        });
+
+        List<Result> results = new ArrayList<>(tasks.size());
+        for (ValidateTask task : tasks) {
+            results.add(task.join());
+        }
+
+        return results;
+    }
+
+    /**
+     * Validate a single layout.
+     *
+     * @param layout The layout.
+     * @return Returns the result.
+     */
+    public Result validate(Layout layout) {
+        List<Integer> unresolvedScancodes = new ArrayList<>();
+        List<Integer> unresolvedKeysyms = new ArrayList<>();
+
+        long start = System.nanoTime();
+        CompiledLayout compiledLayout;
+        try {
+            Keycodes keycodes = Keycodes.load(layout.getId());
+            compiledLayout = CompiledLayout.build(layout.getId(), keycodes, keysyms, scancodes.copy());
+        } catch (FileManager.FileManagerException | RuntimeException e) {
+            return new Result(layout, new BitSet(), unresolvedScancodes, unresolvedKeysyms, new BitSet(), System.nanoTime() - start, e.toString());
+        }
+        long buildTime = System.nanoTime() - start;
+
+        for (Keycode keycode : compiledLayout.getKeycodes().getKeycodes()) {
+            if (keycode.getScancode() == null) {
+                unresolvedScancodes.add(keycode.getValue());
+            }
+
+            for (Keysym.Ref keysymRef : keycode.getKeysymRefs()) {
+                if (keysymRef.getValue() != NO_SYMBOL && keysyms.find(keysymRef) == null && !unresolvedKeysyms.contains(keysymRef.getValue())) {
+                    unresolvedKeysyms.add(keysymRef.getValue());
+                }
+            }
+        }
+
+        Keymap keymap = compiledLayout.getKeymap();
+        BitSet coverage = new BitSet();
+        for (int character = printable.nextSetBit(0); character >= 0; character = printable.nextSetBit(character + 1)) {
+            if (keymap.contains((char) character)) {
+                coverage.set(character);
+            }
+        }
+
+        BitSet roundTripErrors = new BitSet();
+        String characters = getCharacters(coverage);
+        roundTrip(compiledLayout, characters, false, roundTripErrors);
+        roundTrip(compiledLayout, characters, true, roundTripErrors);
+
+        return new Result(layout, coverage, unresolvedScancodes, unresolvedKeysyms, roundTripErrors, buildTime, null);
+    }
+
+    /**
+     * Convert the characters into keyboard events and decode them again.
+     *
+     * @param layout     The compiled layout.
+     * @param characters The characters, which must be covered by the layout.
+     * @param rollover   Whether multiple characters should be pressed by a single keyboard event.
+     * @param errors     Receives the characters which weren't decoded to the same character.
+     */
+    private static void roundTrip(CompiledLayout layout, String characters, boolean rollover, BitSet errors) {
+        int[] plan = new int[characters.length()];
+        Planner.plan(layout.getKeymap(), characters, plan);
+
+        ByteBuffer buffer = ByteBuffer.allocate(2 * plan.length * Converter.REPORT_SIZE + Converter.REPORT_SIZE);
+        new Converter().convert(plan, 0, buffer, rollover);
+        buffer.flip();
+
+        String decoded = layout.getDecoder().decode(buffer);
+        for (int i = 0; i < characters.length(); i++) {
+            if (i >= decoded.length() || decoded.charAt(i) != characters.charAt(i)) {
+                errors.set(characters.charAt(i));
+            }
+        }
+    }
+
+    /**
+     * Create the report of the given results.
+     *
+     * @param results The results.
+     * @param time    The time it took to validate all layouts in nanoseconds.
+     * @return Returns the report.
+     * @throws JSONException
+     */
+    public JSONObject dump(List<Result> results, long time) throws JSONException {
+        int valid = 0;
+        int roundTripErrors = 0;
+        BitSet union = new BitSet();
+        JSONArray resultsArr = new JSONArray();
+        for (Result result : results) {
+            if (result.isValid()) {
+                valid++;
+            }
+            roundTripErrors += result.getRoundTripErrors().cardinality();
+            union.or(result.getCoverage());
+            resultsArr.put(result.dump());
+        }
+
+        JSONObject obj = new JSONObject();
+        obj.put("keysyms", keysymsId);
+        obj.put("printable", printable.cardinality());
+        obj.put("layouts", results.size());
+        obj.put("valid", valid);
+        obj.put("coverage", union.cardinality());
+        obj.put("roundTripErrors", roundTripErrors);
+        obj.put("time", time / 1e6);
+        obj.put("results", resultsArr);
+
+        return obj;
+    }
+
+    /**
+     * Get the printable ASCII characters which aren't covered.
+     */
+    private static String getMissingAscii(BitSet coverage) {
+        StringBuilder missing = new StringBuilder();
+        for (char character = ASCII_FIRST; character <= ASCII_LAST; character++) {
+            if (!coverage.get(character)) {
+                missing.append(character);
+            }
+        }
+
+        return missing.toString();
+    }
+
+    private static JSONArray toJSONArray(List<Integer> values) {
+        JSONArray arr = new JSONArray();
+        for (Integer value : values) {
+            arr.put(value);
+        }
+
+        return arr;
+    }
+
+    private static String getCharacters(BitSet characters) {
+        StringBuilder str = new StringBuilder(characters.cardinality());
+        for (int character = characters.nextSetBit(0); character >= 0; character = characters.nextSetBit(character + 1)) {
+            str.append((char) character);
+        }
+
+        return str.toString();
+    }
+
+    /**
+     * Validate the whole layout catalog and write the report. The working directory must be the
+     * directory of the app module.
+     *
+     * @param args The optional path of the report file. The report is written to the standard
+     *             output if no path is given.
+     * @throws Exception When the catalog couldn't be validated.
+     */
+    public static void main(String[] args) throws Exception {
+        BenchmarkEnvironment.setUp();
+
+        long start = System.nanoTime();
+        LayoutValidator validator = new LayoutValidator(Keysyms.DEFAULT_ID, Scancodes.DEFAULT_ID);
+        Collection<Layout> layouts = Layouts.load().getLayouts();
+
+        ForkJoinPool pool = new ForkJoinPool();
+        List<Result> results;
+        try {
+            results = validator.validate(layouts, pool);
+        } finally {
+            pool.shutdown();
+        }
+
+        String report = validator.dump(results, System.nanoTime() - start).toString(2);
+        if (args.length == 0) {
+            System.out.println(report);
+        } else {
+            File file = new File(args[0]);
+            File parent = file.getParentFile();
+            if (parent != null && !parent.exists() && !parent.mkdirs()) {
+                throw new IOException(String.format("couldn't create directory '%s'", parent.getPath()));
+            }
+
+            OutputStream os = new FileOutputStream(file);
+            try {
+                os.write(report.getBytes("UTF-8"));
+            } finally {
+                os.close();
+            }
+        }
+    }
+}
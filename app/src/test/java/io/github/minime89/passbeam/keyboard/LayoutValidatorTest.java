@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import io.github.minime89.passbeam.BenchmarkEnvironment;
+import io.github.minime89.passbeam.FileManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LayoutValidatorTest {
+    @Before
+    public void before() throws Exception {
+        BenchmarkEnvironment.setUp();
+    }
+
+    @Test
+    public void testLayouts() throws Exception {
+        FileManager fileManager = new FileManager();
+        LayoutValidator validator = new LayoutValidator(Keysyms.DEFAULT_ID, Scancodes.DEFAULT_ID);
+        Layouts layouts = Layouts.load();
+
+        assertEquals("expect that all layouts in the keycodes directory are valid and could be loaded", fileManager.getKeycodesFiles().size(), layouts.getLayouts().size());
+
+        ForkJoinPool pool = new ForkJoinPool();
+        List<LayoutValidator.Result> results;
+        try {
+            results = validator.validate(layouts.getLayouts(), pool);
+        } finally {
+            pool.shutdown();
+        }
+
+        assertEquals("expect a result for every layout", layouts.getLayouts().size(), results.size());
+        for (LayoutValidator.Result result : results) {
+            assertTrue(String.format("expect that layout '%s' could be loaded: %s", result.getLayout().getId(), result.getError()), result.getError() == null);
+            assertTrue(String.format("expect that layout '%s' covers at least one printable character", result.getLayout().getId()), result.isValid());
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class PacerTest {
+    private static final long INTERVAL = 1000000;
+
+    @Test
+    public void testAdaptiveSpeedsUp() {
+        Pacer pacer = new Pacer(Pacer.Mode.ADAPTIVE, INTERVAL);
+        for (int i = 0; i < 1000; i++) {
+            pacer.written();
+        }
+
+        assertEquals("expect that the interval is reduced down to half the configured interval", INTERVAL / 2, pacer.getCurrentInterval());
+        assertEquals("expect that the target rate refers to the configured interval", 1000.0, pacer.getTargetRate(), 1e-9);
+    }
+
+    @Test
+    public void testAdaptiveBacksOff() {
+        Pacer pacer = new Pacer(Pacer.Mode.ADAPTIVE, INTERVAL);
+        pacer.backOff();
+        assertEquals(2 * INTERVAL, pacer.getCurrentInterval());
+
+        for (int i = 0; i < 10; i++) {
+            pacer.backOff();
+        }
+        assertEquals("expect that the interval is increased up to four times the configured interval", 4 * INTERVAL, pacer.getCurrentInterval());
+
+        pacer.start();
+        assertEquals("expect that the adapted interval is kept", 4 * INTERVAL, pacer.getCurrentInterval());
+    }
+
+    @Test
+    public void testBackOffWithoutAdaptiveMode() {
+        for (Pacer.Mode mode : new Pacer.Mode[]{Pacer.Mode.FIXED_RATE, Pacer.Mode.MIN_GAP, Pacer.Mode.BURST}) {
+            Pacer pacer = new Pacer(mode, INTERVAL);
+            pacer.backOff();
+            pacer.written();
+
+            assertEquals(INTERVAL, pacer.getCurrentInterval());
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import io.github.minime89.passbeam.BenchmarkEnvironment;
+
+/**
+ * Pure Java stand-in for <code>tools/virtual-keyboard</code>, which doesn't need
+ * <code>/dev/uhid</code> or an X server. The server speaks the same socket protocol: the client
+ * writes keyboard events of {@link Converter#REPORT_SIZE} bytes and the server answers every
+ * keyboard event with the UTF-8 encoded text it produced, or with a single null byte if it didn't
+ * produce any text. Like the original, the server handles one connection at a time.
+ * <p/>
+ * The keyboard events are decoded using the {@link Decoder} of the active layout, which can be
+ * changed at any time. A latency can be injected before every keyboard event is answered, and
+ * keyboard events can be dropped with a given probability. A dropped keyboard event is answered
+ * with a null byte and doesn't change the pressed keys, like a keyboard event lost on the way to
+ * the host.
+ */
+public class VirtualKeyboardServer implements Closeable {
+    /**
+     * The default port of the server, which is also used by <code>tools/virtual-keyboard</code>.
+     */
+    public static final int DEFAULT_PORT = 4242;
+
+    private final ServerSocket serverSocket;
+    private final Random random;
+
+    /**
+     * The decoder of the active layout.
+     */
+    private volatile Decoder decoder;
+
+    /**
+     * The latency injected before every keyboard event is answered in nanoseconds.
+     */
+    private volatile long latency = 0;
+
+    /**
+     * The probability that a keyboard event is dropped.
+     */
+    private volatile double dropRate = 0;
+
+    private final AtomicLong reportCount = new AtomicLong();
+    private final AtomicLong dropCount = new AtomicLong();
+
+    private Thread thread;
+
+    /**
+     * Constructor. The server listens on the loopback interface.
+     *
+     * @param port    The port or 0 to use any free port, see {@link #getPort()}.
+     * @param decoder The decoder of the active layout.
+     * @param seed    The seed of the random numbers which decide which keyboard events are
+     *                dropped.
+     * @throws IOException When the server socket couldn't be bound.
+     */
+    public VirtualKeyboardServer(int port, Decoder decoder, long seed) throws IOException {
+        this.serverSocket = new ServerSocket(port, 5, InetAddress.getLoopbackAddress());
+        this.decoder = decoder;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Start accepting connections in the background.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, VirtualKeyboardServer.class.getSimpleName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the server. A connected client gets disconnected.
+     *
+     * @throws IOException When the server socket couldn't be closed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        serverSocket.close();
+
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * Accept and serve connections until the server socket gets closed.
+     */
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                try {
+                    serve(socket);
+                } finally {
+                    socket.close();
+                }
+            } catch (SocketException e) {
+                //server socket was closed
+            } catch (IOException e) {
+                System.err.println(String.format("connection failed: %s", e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Answer the keyboard events of a connection until the client disconnects.
+     *
+     * @param socket The socket of the connection.
+     * @throws IOException When reading or writing failed.
+     */
+    private void serve(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        DataInputStream is = new DataInputStream(socket.getInputStream());
+        OutputStream os = socket.getOutputStream();
+
+        Decoder decoder = this.decoder;
+        Decoder.Stream stream = decoder.newStream();
+        byte[] report = new byte[Converter.REPORT_SIZE];
+        StringBuilder out = new StringBuilder();
+
+        while (true) {
+            try {
+                is.readFully(report);
+            } catch (EOFException e) {
+                return;
+            }
+
+            reportCount.incrementAndGet();
+
+            long latency = this.latency;
+            if (latency > 0) {
+                LockSupport.parkNanos(latency);
+            }
+
+            if (isDropped()) {
+                dropCount.incrementAndGet();
+                os.write(0);
+                continue;
+            }
+
+            //start a new stream after the layout changed
+            if (this.decoder != decoder) {
+                decoder = this.decoder;
+                stream = decoder.newStream();
+            }
+
+            out.setLength(0);
+            stream.decode(ByteBuffer.wrap(report), out);
+            if (out.length() > 0) {
+                os.write(out.toString().getBytes("UTF-8"));
+            } else {
+                os.write(0);
+            }
+        }
+    }
+
+    private boolean isDropped() {
+        double dropRate = this.dropRate;
+        if (dropRate <= 0) {
+            return false;
+        }
+
+        synchronized (random) {
+            return random.nextDouble() < dropRate;
+        }
+    }
+
+    /**
+     * Change the active layout.
+     *
+     * @param decoder The decoder of the layout.
+     */
+    public void setDecoder(Decoder decoder) {
+        this.decoder = decoder;
+    }
+
+    /**
+     * Set the latency injected before every keyboard event is answered.
+     *
+     * @param latency The latency.
+     * @param unit    The unit of the latency.
+     */
+    public void setLatency(long latency, TimeUnit unit) {
+        this.latency = unit.toNanos(latency);
+    }
+
+    /**
+     * Set the probability that a keyboard event is dropped.
+     *
+     * @param dropRate The probability between 0 and 1.
+     */
+    public void setDropRate(double dropRate) {
+        if (dropRate < 0 || dropRate > 1) {
+            throw new IllegalArgumentException("drop rate must be between 0 and 1");
+        }
+
+        this.dropRate = dropRate;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Get the number of received keyboard events, including the dropped ones.
+     *
+     * @return Returns the number of keyboard events.
+     */
+    public long getReportCount() {
+        return reportCount.get();
+    }
+
+    /**
+     * Get the number of dropped keyboard events.
+     *
+     * @return Returns the number of keyboard events.
+     */
+    public long getDropCount() {
+        return dropCount.get();
+    }
+
+    private static void printUsage() {
+        System.out.println("usage: VirtualKeyboardServer [options]");
+        System.out.println();
+        System.out.println("     --port, -p              port of the TCP interface [Default: " + DEFAULT_PORT + "]");
+        System.out.println("     --layout, -l            ID of the layout [Default: " + Keycodes.DEFAULT_ID + "]");
+        System.out.println("     --latency, -d           latency per keyboard event in microseconds [Default: 0]");
+        System.out.println("     --drop-rate, -r         probability that a keyboard event is dropped [Default: 0]");
+        System.out.println("     --seed, -s              seed of the dropped keyboard events [Default: 0]");
+    }
+
+    /**
+     * Run the server until the process gets terminated. The working directory must be the
+     * directory of the app module.
+     *
+     * @param args The options, see {@link #printUsage()}.
+     * @throws Exception When the server couldn't be started.
+     */
+    public static void main(String[] args) throws Exception {
+        int port = DEFAULT_PORT;
+        String layout = Keycodes.DEFAULT_ID;
+        long latency = 0;
+        double dropRate = 0;
+        long seed = 0;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length) {
+                printUsage();
+                return;
+            }
+
+            String value = args[++i];
+            if (arg.equals("--port") || arg.equals("-p")) {
+                port = Integer.parseInt(value);
+            } else if (arg.equals("--layout") || arg.equals("-l")) {
+                layout = value;
+            } else if (arg.equals("--latency") || arg.equals("-d")) {
+                latency = Long.parseLong(value);
+            } else if (arg.equals("--drop-rate") || arg.equals("-r")) {
+                dropRate = Double.parseDouble(value);
+            } else if (arg.equals("--seed") || arg.equals("-s")) {
+                seed = Long.parseLong(value);
+            } else {
+                printUsage();
+                return;
+            }
+        }
+
+        BenchmarkEnvironment.setUp();
+
+        Converter converter = new Converter();
+        converter.load(layout);
+
+        VirtualKeyboardServer server = new VirtualKeyboardServer(port, converter.getDecoder(), seed);
+        server.setLatency(latency, TimeUnit.MICROSECONDS);
+        server.setDropRate(dropRate);
+        server.start();
+
+        System.out.println(String.format("listening on port %d with layout '%s'", server.getPort(), layout));
+
+        //the server thread is a daemon thread
+        while (true) {
+            Thread.sleep(Long.MAX_VALUE);
+        }
+    }
+}
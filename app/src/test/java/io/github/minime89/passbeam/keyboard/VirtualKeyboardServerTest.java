@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 Marcel Lehwald
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.minime89.passbeam.keyboard;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Collection;
+
+import io.github.minime89.passbeam.BenchmarkEnvironment;
+
+import static org.junit.Assert.assertEquals;
+
+public class VirtualKeyboardServerTest {
+    private Converter converter;
+    private VirtualKeyboardServer server;
+
+    @Before
+    public void before() throws Exception {
+        BenchmarkEnvironment.setUp();
+
+        converter = new Converter();
+        converter.load(Keycodes.DEFAULT_ID);
+
+        server = new VirtualKeyboardServer(0, converter.getDecoder(), 0);
+        server.start();
+    }
+
+    @After
+    public void after() throws Exception {
+        server.close();
+    }
+
+    /**
+     * Write the keyboard events of the string to the server and collect the answers.
+     */
+    private String type(String str) throws Exception {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        try {
+            InputStream is = socket.getInputStream();
+            OutputStream os = socket.getOutputStream();
+
+            StringBuilder out = new StringBuilder();
+            Collection<byte[]> data = converter.convert(str);
+            for (byte[] bytes : data) {
+                os.write(bytes);
+
+                byte[] buffer = new byte[256];
+                int len = is.read(buffer);
+
+                //keyboard events which don't produce text (e.g. releasing all keys) are answered with a single null byte
+                if (len != 1 || buffer[0] != 0) {
+                    out.append(new String(buffer, 0, len, "UTF-8"));
+                }
+            }
+
+            return out.toString();
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testType() throws Exception {
+        String str = "The quick brown fox jumps over the lazy dog! 0123456789 {}[]<>";
+
+        assertEquals("expect that the server produces the typed string", str, type(str));
+        assertEquals("expect that every keyboard event was answered", converter.convert(str).size(), server.getReportCount());
+    }
+
+    @Test
+    public void testDrop() throws Exception {
+        server.setDropRate(1);
+
+        assertEquals("expect that dropped keyboard events don't produce text", "", type("abc"));
+        assertEquals("expect that all keyboard events were dropped", server.getReportCount(), server.getDropCount());
+    }
+}